@@ -6,9 +6,8 @@ import library.*;
 import org.json.simple.JSONObject;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.security.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -20,6 +19,11 @@ public class ClientEndpoint {
     private PublicKey publicKey  = null;
     private String username = null;
     private CryptoManager cryptoManager = null;
+    private ConnectionPool connectionPool = null;
+    // This user's sessions with the replicas, null unless dpas.client.session=true
+    private Sessions sessions = null;
+    // The numbers this user gives its requests, null unless dpas.client.freshness=counter
+    private Sequences sequences = null;
 
     /********** Atomic Register Variables ************/
     int wts = -1; // -1 means we must ask server for the current wts
@@ -31,6 +35,7 @@ public class ClientEndpoint {
     private static final int PORT = 9000;
     private static final int TIMEOUT = 5000;
     private static final int TIMEOUT_WHILE = 100;  // this * 50 miliseconds
+    private static final int SOCKET_TIMEOUT = 15000;
     private int nServers = 4;
     private int nQuorum  = 2;
  
@@ -52,6 +57,18 @@ public class ClientEndpoint {
         setPublicKey(cryptoManager.getPublicKeyFromKs(username));
         this.username = username;
         serversPorts = initiateServersPorts();
+        connectionPool = new ConnectionPool(serverAddress, SOCKET_TIMEOUT);
+        if(Sessions.ENABLED) {
+            sessions = Sessions.forUser(username);
+        }
+        if(Sequences.ENABLED) {
+            sequences = Sequences.forUser(username);
+        }
+    }
+
+    // Closes the links kept open to the replicas
+    public void close() {
+        connectionPool.close();
     }
 
     public void changeNservers(int nServers) {
@@ -92,36 +109,102 @@ public class ClientEndpoint {
 //
 //////////////////////////////////////////
     
-    private Socket createSocket(int port) throws IOException {
-        return new Socket(serverAddress, port);
+    private SocketConnection createConnection(int port) throws IOException {
+        SocketConnection connection = new SocketConnection(serverAddress, port);
+        connection.setTimeout(SOCKET_TIMEOUT);
+        return connection;
     }
 
-    private ObjectOutputStream createOutputStream(Socket socket) throws IOException {
-        return new ObjectOutputStream(socket.getOutputStream());
+    private Envelope sendReceive(Envelope envelope, int port) throws IOException, ClassNotFoundException {
+        Session session = authenticate(envelope, port);
+        Envelope response = connectionPool.sendReceive(envelope, port);
+        // The replica forgot the session: the same request goes again on a new one, its nonce was not used up
+        if(session != null && response.getResponse() != null && !response.getResponse().getSuccess() && response.getResponse().getErrorCode() == -16) {
+            sessions.drop(serverKeyOf(port), session);
+            authenticate(envelope, port);
+            response = connectionPool.sendReceive(envelope, port);
+        }
+        return response;
     }
 
-    private ObjectInputStream createInputStream(Socket socket) throws IOException {
-        return new ObjectInputStream(socket.getInputStream());
+    // Answers to these come through the Listener, but a replica may still reply errors on the link, so it is not pooled
+    private void send(Envelope envelope, int port) throws IOException, ClassNotFoundException {
+        try(SocketConnection connection = createConnection(port)) {
+            authenticate(envelope, port);
+            connection.send(envelope);
+        }
     }
 
-    private Envelope sendReceive(Envelope envelope, int port) throws IOException, ClassNotFoundException {
-        Socket socket = createSocket(port);
-        socket.setSoTimeout(15000);
-        // Sign envelope
-        envelope.setSignature(cryptoManager.signRequest(envelope.getRequest()));
-        createOutputStream(socket).writeObject(envelope);
-        Envelope responseEnvelope = (Envelope) createInputStream(socket).readObject();
-        return responseEnvelope;
+    // MACs the request with this user's session with the replica when there is one, signs it otherwise
+    private Session authenticate(Envelope envelope, int port) {
+        Request request = envelope.getRequest();
+        Session session = sessions == null ? null : session(port);
+        if(session != null) {
+            request.setSession(session.getId());
+            envelope.setSignature(cryptoManager.macRequest(request, session));
+        } else {
+            request.setSession(null);
+            envelope.setSignature(cryptoManager.signRequest(request));
+        }
+        return session;
     }
 
-    private void send(Envelope envelope, int port) throws IOException, ClassNotFoundException {
-        Socket socket = createSocket(port);
-        socket.setSoTimeout(15000);
-        ObjectOutputStream out = createOutputStream(socket);
-        // Sign envelope
-        envelope.setSignature(cryptoManager.signRequest(envelope.getRequest()));
-        out.writeObject(envelope);
-        out.close();
+    // A response naming a session is MAC'd with this user's session with that replica, any other is signed
+    private boolean verifyResponse(Envelope envelope, PublicKey serverKey) {
+        Response response = envelope.getResponse();
+        if(response.getSession() == null) {
+            return cryptoManager.verifyResponse(response, envelope.getSignature(), serverKey);
+        }
+        Session session = sessions == null ? null : sessions.get(serverKey);
+        return session != null && session.hasId(response.getSession()) && cryptoManager.verifyResponse(response, envelope.getSignature(), session);
+    }
+
+    private Session session(int port) {
+        PublicKey serverKey = serverKeyOf(port);
+        if(serverKey == null || !Session.canSeal(serverKey)) {
+            return null;
+        }
+        Session session = sessions.get(serverKey);
+        if(session == null && sessions.mayOpen(serverKey)) {
+            session = openSession(serverKey, port);
+            if(session != null) {
+                sessions.put(serverKey, session);
+            } else {
+                sessions.refuse(serverKey);
+            }
+        }
+        return session;
+    }
+
+    // The one signed exchange of a session. The replica shows it could open the key by MACing its reply with it
+    private Session openSession(PublicKey serverKey, int port) {
+        try {
+            Session session = Session.generate();
+            byte[] clientNonce = new byte[16];
+            new SecureRandom().nextBytes(clientNonce);
+            Request request = new Request("SESSION", getPublicKey(), null, clientNonce);
+            request.setSession(session.seal(serverKey));
+            Envelope reply = connectionPool.sendReceive(new Envelope(request, cryptoManager.signRequest(request)), port);
+            Response response = reply.getResponse();
+            if(response != null && response.getSuccess() && Arrays.equals(response.getNonce(), clientNonce) && session.hasId(response.getSession()) &&
+                    cryptoManager.verifyResponse(response, reply.getSignature(), session)) {
+                return session;
+            }
+        } catch (GeneralSecurityException | ClassNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            // Unreachable, or a replica that does not know SESSION: requests to it stay signed
+        }
+        return null;
+    }
+
+    private PublicKey serverKeyOf(int port) {
+        for(Map.Entry<PublicKey, Integer> entry : serversPorts.entrySet()) {
+            if(entry.getValue() == port) {
+                return entry.getKey();
+            }
+        }
+        return null;
     }
 
 
@@ -143,8 +226,16 @@ public class ClientEndpoint {
     }
 
     private byte[] startHandshake(PublicKey serverKey, boolean oneWay) throws NonceTimeoutException, IntegrityException {
+        // A numbered request needs no nonce from the replica, it goes out right away
+        if(sequences != null) {
+            if(!oneWay) {
+                cryptoManager.generateRandomNonce(serverKey);
+            }
+            return sequences.next(serverKey);
+        }
     	Envelope nonceEnvelope = askForServerNonce(getPublicKey(), serversPorts.get(serverKey));
-    	if(cryptoManager.verifyResponse(nonceEnvelope.getResponse(), nonceEnvelope.getSignature(), serverKey)) {
+    	if(verifyResponse(nonceEnvelope, serverKey)) {
+    		ResponseChecker.checkAdmission(nonceEnvelope.getResponse());
     		if(!oneWay) {
                 cryptoManager.generateRandomNonce(serverKey);
     		}
@@ -172,7 +263,7 @@ public class ClientEndpoint {
         Thread[] tasks = new Thread[nServers];
         // Register to all servers
         for (PublicKey serverKey : serversPorts.keySet()) {
-        	tasks[serversPorts.get(serverKey) - PORT] = new Thread(new Runnable() {
+        	tasks[serversPorts.get(serverKey) - PORT] = Tasks.newThread(new Runnable() {
                 public void run() {
                 	try {
                 		results[serversPorts.get(serverKey) - PORT] = registerMethod(serverKey);
@@ -182,6 +273,8 @@ public class ClientEndpoint {
     					results[serversPorts.get(serverKey) - PORT] = -7;
     				} catch (FreshnessException e) {
     					results[serversPorts.get(serverKey) - PORT] = -13;
+                	} catch (TooManyRequestsException e) {
+                		results[serversPorts.get(serverKey) - PORT] = -15;
                 	} catch (NonceTimeoutException e) {
                 		results[serversPorts.get(serverKey) - PORT] = -11;
     				} catch (IntegrityException e) {
@@ -194,16 +287,7 @@ public class ClientEndpoint {
         	tasks[serversPorts.get(serverKey) - PORT].start();
         }
         // FIXME está a espera que todas as threads acabem!!!
-        boolean stillAlive = true;
-        while(stillAlive) {
-        	stillAlive = false;
-            for (PublicKey serverKey : serversPorts.keySet()) {
-            	if(tasks[serversPorts.get(serverKey) - PORT].isAlive()) {
-            		stillAlive = true;
-            		break;
-            	}
-            }
-        }
+        Tasks.joinAll(tasks);
         // Get Quorum from the result to make a decision regarding the responses
         int result = getMajorityOfQuorumInt(results);
         switch (result) {
@@ -211,6 +295,8 @@ public class ClientEndpoint {
         		throw new UnknownPublicKeyException(ExceptionsMessages.UNKNOWN_KEY);
             case (-2):
                 throw new AlreadyRegisteredException(ExceptionsMessages.ALREADY_REGISTERED);
+            case (-15):
+                throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
             case (-11):
                 throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-12):
@@ -249,10 +335,11 @@ public class ClientEndpoint {
                 throw new FreshnessException(registerErrorMessage);
             }
             // Verify message integrity
-            if(!cryptoManager.verifyResponse(envelopeResponse.getResponse(), envelopeResponse.getSignature(), serverKey)) {
+            if(!verifyResponse(envelopeResponse, serverKey)) {
                 throw new IntegrityException(registerErrorMessage);
             }
             // Verify if response has exceptions
+            ResponseChecker.checkAdmission(envelopeResponse.getResponse());
             ResponseChecker.checkRegister(envelopeResponse.getResponse());
             // On success, return 1
             if(envelopeResponse.getResponse().getSuccess()) {
@@ -289,7 +376,7 @@ public class ClientEndpoint {
         Thread[] tasks = new Thread[nServers];
         // Post to all servers
         for (PublicKey serverKey : serversPorts.keySet()) {
-            tasks[serversPorts.get(serverKey) - PORT] = new Thread(new Runnable() {
+            tasks[serversPorts.get(serverKey) - PORT] = Tasks.newThread(new Runnable() {
                 public void run() {
                 	try {
                 		results[serversPorts.get(serverKey) - PORT] = postMethod(message, announcs, serverKey, wts);
@@ -301,6 +388,8 @@ public class ClientEndpoint {
     					results[serversPorts.get(serverKey) - PORT] = -4;
     				} catch (FreshnessException e) {
     					results[serversPorts.get(serverKey) - PORT] = -13;
+                	} catch (TooManyRequestsException e) {
+                		results[serversPorts.get(serverKey) - PORT] = -15;
                 	} catch (NonceTimeoutException e) {
                 		results[serversPorts.get(serverKey) - PORT] = -11;
     				} catch (IntegrityException e) {
@@ -313,16 +402,7 @@ public class ClientEndpoint {
         	tasks[serversPorts.get(serverKey) - PORT].start();
         }
         // FIXME está a espera que todas as threads acabem!!!
-        boolean stillAlive = true;
-        while(stillAlive) {
-        	stillAlive = false;
-            for (PublicKey serverKey : serversPorts.keySet()) {
-            	if(tasks[serversPorts.get(serverKey) - PORT].isAlive()) {
-            		stillAlive = true;
-            		break;
-            	}
-            }
-        }
+        Tasks.joinAll(tasks);
 
         // Get Quorum from the result to make a decision regarding the responses
         int result = getQuorumInt(results);
@@ -333,6 +413,8 @@ public class ClientEndpoint {
                 throw new MessageTooBigException(ExceptionsMessages.MESSAGE_TOO_BIG);
             case (-5):
                 throw new InvalidAnnouncementException(ExceptionsMessages.INVALID_ANNOUNCEMENTS);
+            case (-15):
+                throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
             case (-11):
                 throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-12):
@@ -355,7 +437,7 @@ public class ClientEndpoint {
     }
 
 	public int write(PublicKey clientKey, String message, int[] announcs, byte[] serverNonce, byte[] clientNonce, PublicKey serverKey, int ts) throws InvalidAnnouncementException,
-                                                                                                                                                                       UserNotRegisteredException, MessageTooBigException, OperationTimeoutException, FreshnessException, IntegrityException {
+                                                                                                                                                                       UserNotRegisteredException, MessageTooBigException, NonceTimeoutException, OperationTimeoutException, FreshnessException, IntegrityException {
         Request request;
 
         request = new Request("POST", clientKey, message, announcs, serverNonce, clientNonce, ts);
@@ -381,9 +463,10 @@ public class ClientEndpoint {
                 throw new FreshnessException(errorMessage);
             }
             // Verify message integrity
-            if(!cryptoManager.verifyResponse(envelopeResponse.getResponse(), envelopeResponse.getSignature(), serverKey)){
+            if(!verifyResponse(envelopeResponse, serverKey)){
                 throw new IntegrityException(errorMessage);
             }
+            ResponseChecker.checkAdmission(envelopeResponse.getResponse());
             ResponseChecker.checkPost(envelopeResponse.getResponse());
             // On success, return 1
             return 1;
@@ -409,7 +492,7 @@ public class ClientEndpoint {
         Thread[] tasks = new Thread[nServers];
         // Post to all servers
         for (PublicKey serverKey : serversPorts.keySet()) {
-            tasks[serversPorts.get(serverKey) - PORT] = new Thread(new Runnable() {
+            tasks[serversPorts.get(serverKey) - PORT] = Tasks.newThread(new Runnable() {
                 public void run() {
                     try {
                         results[serversPorts.get(serverKey) - PORT] = postGeneralMethod(message, announcs, serverKey, wtsG);
@@ -421,6 +504,8 @@ public class ClientEndpoint {
                         results[serversPorts.get(serverKey) - PORT] = -4;
                     } catch (FreshnessException e) {
                         results[serversPorts.get(serverKey) - PORT] = -13;
+                    } catch (TooManyRequestsException e) {
+                        results[serversPorts.get(serverKey) - PORT] = -15;
                     } catch (NonceTimeoutException e) {
                         results[serversPorts.get(serverKey) - PORT] = -11;
                     } catch (IntegrityException e) {
@@ -433,16 +518,7 @@ public class ClientEndpoint {
             tasks[serversPorts.get(serverKey) - PORT].start();
         }
         // FIXME está a espera que todas as threads acabem!!!
-        boolean stillAlive = true;
-        while(stillAlive) {
-            stillAlive = false;
-            for (PublicKey serverKey : serversPorts.keySet()) {
-                if(tasks[serversPorts.get(serverKey) - PORT].isAlive()) {
-                    stillAlive = true;
-                    break;
-                }
-            }
-        }
+        Tasks.joinAll(tasks);
         // Get Quorum from the result to make a decision regarding the responses
         int result = getQuorumInt(results);
         switch (result) {
@@ -452,6 +528,8 @@ public class ClientEndpoint {
                 throw new MessageTooBigException(ExceptionsMessages.MESSAGE_TOO_BIG);
             case (-5):
                 throw new InvalidAnnouncementException(ExceptionsMessages.INVALID_ANNOUNCEMENTS);
+            case (-15):
+                throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
             case (-11):
                 throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-12):
@@ -474,7 +552,7 @@ public class ClientEndpoint {
     }
 
     public int writeGeneral(PublicKey clientKey, String message, int[] announcs, byte[] serverNonce, byte[] clientNonce, PublicKey serverKey, int ts) throws InvalidAnnouncementException,
-                                                                                                                                                                                 UserNotRegisteredException, MessageTooBigException, OperationTimeoutException, FreshnessException, IntegrityException {
+                                                                                                                                                                                 UserNotRegisteredException, MessageTooBigException, NonceTimeoutException, OperationTimeoutException, FreshnessException, IntegrityException {
         Request request;
 
         Quadruplet<String, Integer, String, int[]> quad = new Quadruplet<>(username, ts, message, announcs);
@@ -503,9 +581,10 @@ public class ClientEndpoint {
                 throw new FreshnessException(errorMessage);
             }
             // Verify message integrity
-            if(!cryptoManager.verifyResponse(envelopeResponse.getResponse(), envelopeResponse.getSignature(), serverKey)){
+            if(!verifyResponse(envelopeResponse, serverKey)){
                 throw new IntegrityException(errorMessage);
             }
+            ResponseChecker.checkAdmission(envelopeResponse.getResponse());
             ResponseChecker.checkPost(envelopeResponse.getResponse());
             // On success, return 1
             return 1;
@@ -528,12 +607,9 @@ public class ClientEndpoint {
         rid += 1;
         // forall t > 0 do answers [t] := [⊥] N ;
         Listener listener = null;
-        ServerSocket listenerSocket = null;
 
         try {
-            listenerSocket = new ServerSocket(getClientPort());
-            listenerSocket.setSoTimeout(TIMEOUT);
-            listener = new Listener(listenerSocket, nQuorum, username, getPublicKey(), serversPorts);
+            listener = new Listener(getClientPort(), nQuorum, username, getPublicKey(), serversPorts);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -543,7 +619,7 @@ public class ClientEndpoint {
         int[] resultsFromTasksRead = new int[nServers];
         // Send read to all servers
         for (PublicKey serverKey : serversPorts.keySet()) {
-        	tasksRead[serversPorts.get(serverKey) - PORT] = new Thread(new Runnable() {
+        	tasksRead[serversPorts.get(serverKey) - PORT] = Tasks.newThread(new Runnable() {
                 public void run() {
                 	resultsFromTasksRead[serversPorts.get(serverKey) - PORT] = readMethod(announcUserName, number, serverKey, rid);
                 }
@@ -552,40 +628,22 @@ public class ClientEndpoint {
         }
 
         // wait for requests to be made
-        boolean stillAlive = true;
-        while(stillAlive) {
-            stillAlive = false;
-            for (PublicKey serverKey : serversPorts.keySet()) {
-                if(tasksRead[serversPorts.get(serverKey) - PORT].isAlive()) {
-                    stillAlive = true;
-                    break;
-                }
-            }
-        }
+        Tasks.joinAll(tasksRead);
 
         switch (getQuorumInt(resultsFromTasksRead)) {
             case (1):
                 break;
+            case (-15):
+                listener.close();
+                throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
             case (-11):
-                try {
-                    listenerSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                listener.close();
                 throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-14):
-                try {
-                    listenerSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                listener.close();
                 throw new IntegrityException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-12):
-                try {
-                    listenerSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                listener.close();
                 throw new OperationTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             default:
                 break;
@@ -608,11 +666,7 @@ public class ClientEndpoint {
         }
 
         // Close Listener socket when we get its result
-        try {
-            listenerSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        listener.close();
 
         if(timeout_flag){
             throw new OperationTimeoutException(ExceptionsMessages.CANT_INFER_POST);
@@ -626,7 +680,7 @@ public class ClientEndpoint {
             int[] resultsFromTasksReadComplete = new int[nServers];
             // Send 'read complete' to all servers
             for (PublicKey serverKey : serversPorts.keySet()) {
-                tasksReadComplete[serversPorts.get(serverKey) - PORT] = new Thread(new Runnable() {
+                tasksReadComplete[serversPorts.get(serverKey) - PORT] = Tasks.newThread(new Runnable() {
                     public void run() {
                         resultsFromTasksReadComplete[serversPorts.get(serverKey) - PORT] = readComplete(announcUserName, serverKey, rid);
                     }
@@ -634,19 +688,12 @@ public class ClientEndpoint {
                 tasksReadComplete[serversPorts.get(serverKey) - PORT].start();
             }
             // wait for all read complete tasks
-            stillAlive = true;
-            while(stillAlive) {
-                stillAlive = false;
-                for (PublicKey serverKey : serversPorts.keySet()) {
-                    if(tasksReadComplete[serversPorts.get(serverKey) - PORT].isAlive()) {
-                        stillAlive = true;
-                        break;
-                    }
-                }
-            }
+            Tasks.joinAll(tasksReadComplete);
             switch (getQuorumInt(resultsFromTasksReadComplete)) {
                 case (1):
                     break;
+                case (-15):
+                    throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
                 case (-11):
                     throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
                 case (-14):
@@ -668,6 +715,10 @@ public class ClientEndpoint {
                     throw new InvalidPostsNumberException(ExceptionsMessages.INVALID_READ_ANNOUNCEMENT);
                 case (-10):
                     throw new TooMuchAnnouncementsException(ExceptionsMessages.TOO_MUCH_ANNOUNCEMENTS);
+                case (-15):
+                    throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
+                case (-16):
+                    throw new SessionExpiredException(ExceptionsMessages.SESSION_EXPIRED);
                 case (-11):
                     throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
                 case (-12):
@@ -691,11 +742,13 @@ public class ClientEndpoint {
 			PublicKey pubKeyToReadFrom = cryptoManager.getPublicKeyFromKs(announcUserName);
 			//  -----> send read operation to server
 			Request request = new Request("READ", getPublicKey(), pubKeyToReadFrom, number, serverNonce, rid);
-			Envelope envelopeRequest = new Envelope(request, cryptoManager.signRequest(request));
+			Envelope envelopeRequest = new Envelope(request);
             send(envelopeRequest, serversPorts.get(serverKey));
             return 1;
 		} catch (ClassNotFoundException e) {
             return -666;
+        } catch (TooManyRequestsException e) {
+            return -15;
         } catch (NonceTimeoutException e) {
             return -11;
         } catch (IntegrityException e) {
@@ -713,11 +766,13 @@ public class ClientEndpoint {
             PublicKey pubKeyToReadFrom = cryptoManager.getPublicKeyFromKs(announcUserName);
             //  -----> send read complete operation to server
             Request request = new Request("READCOMPLETE", getPublicKey(), pubKeyToReadFrom, serverNonce, rid);
-            Envelope envelopeRequest = new Envelope(request, cryptoManager.signRequest(request));
+            Envelope envelopeRequest = new Envelope(request);
             send(envelopeRequest, serversPorts.get(serverKey));
             return 1;
 		} catch (ClassNotFoundException e) {
             return -666;
+        } catch (TooManyRequestsException e) {
+            return -15;
         } catch (NonceTimeoutException e) {
             return -11;
         } catch (IntegrityException e) {
@@ -735,11 +790,8 @@ public class ClientEndpoint {
     public JSONObject readGeneral(int number) throws UserNotRegisteredException, InvalidPostsNumberException, TooMuchAnnouncementsException, NonceTimeoutException, OperationTimeoutException, FreshnessException, IntegrityException {
         ridG += 1;
         Listener listener = null;
-        ServerSocket listenerSocket = null;
         try {
-            listenerSocket = new ServerSocket(getClientPort());
-            listenerSocket.setSoTimeout(TIMEOUT);
-            listener = new Listener(listenerSocket, nQuorum, username, getPublicKey(), serversPorts);
+            listener = new Listener(getClientPort(), nQuorum, username, getPublicKey(), serversPorts);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -748,7 +800,7 @@ public class ClientEndpoint {
         int[] resultsFromTasksRead = new int[nServers];
         // Send read to all servers
         for (PublicKey serverKey : serversPorts.keySet()) {
-            tasksRead[serversPorts.get(serverKey) - PORT] = new Thread(new Runnable() {
+            tasksRead[serversPorts.get(serverKey) - PORT] = Tasks.newThread(new Runnable() {
                 public void run() {
                     resultsFromTasksRead[serversPorts.get(serverKey) - PORT] = readGeneralMethod(number, serverKey, rid);
                 }
@@ -757,40 +809,22 @@ public class ClientEndpoint {
         }
 
         // wait for requests to be made
-        boolean stillAlive = true;
-        while(stillAlive) {
-            stillAlive = false;
-            for (PublicKey serverKey : serversPorts.keySet()) {
-                if(tasksRead[serversPorts.get(serverKey) - PORT].isAlive()) {
-                    stillAlive = true;
-                    break;
-                }
-            }
-        }
+        Tasks.joinAll(tasksRead);
 
         switch (getQuorumInt(resultsFromTasksRead)) {
             case (1):
                 break;
+            case (-15):
+                listener.close();
+                throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
             case (-11):
-                try {
-                    listenerSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                listener.close();
                 throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-14):
-                try {
-                    listenerSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                listener.close();
                 throw new IntegrityException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-12):
-                try {
-                    listenerSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                listener.close();
                 throw new OperationTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             default:
                 break;
@@ -812,11 +846,7 @@ public class ClientEndpoint {
             }
         }
 
-        try {
-            listenerSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        listener.close();
 
         if(timeout_flag){
             throw new OperationTimeoutException(ExceptionsMessages.CANT_INFER_POST);
@@ -838,6 +868,10 @@ public class ClientEndpoint {
                     throw new InvalidPostsNumberException(ExceptionsMessages.INVALID_READ_ANNOUNCEMENT);
                 case (-10):
                     throw new TooMuchAnnouncementsException(ExceptionsMessages.TOO_MUCH_ANNOUNCEMENTS);
+                case (-15):
+                    throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
+                case (-16):
+                    throw new SessionExpiredException(ExceptionsMessages.SESSION_EXPIRED);
                 case (-11):
                     throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
                 case (-12):
@@ -859,11 +893,13 @@ public class ClientEndpoint {
             byte[] serverNonce = startHandshake(serverKey, true);
             //  -----> send read operation to server
             Request request = new Request("READGENERAL", getPublicKey(), number, serverNonce, rid);
-            Envelope envelopeRequest = new Envelope(request, cryptoManager.signRequest(request));
+            Envelope envelopeRequest = new Envelope(request);
             send(envelopeRequest, serversPorts.get(serverKey));
             return 1;
 		} catch (ClassNotFoundException e) {
             return -666;
+        } catch (TooManyRequestsException e) {
+            return -15;
         } catch (NonceTimeoutException e) {
             return -11;
         } catch (IntegrityException e) {
@@ -884,7 +920,7 @@ public class ClientEndpoint {
         Thread[] tasks = new Thread[nServers];
         // Register to all servers
         for (PublicKey serverKey : serversPorts.keySet()) {
-        	tasks[serversPorts.get(serverKey) - PORT] = new Thread(new Runnable() {
+        	tasks[serversPorts.get(serverKey) - PORT] = Tasks.newThread(new Runnable() {
                 public void run() {
                 	try {
                 		results[serversPorts.get(serverKey) - PORT] = askForSingleWts(serverKey, isGeneral);
@@ -892,6 +928,8 @@ public class ClientEndpoint {
                 		results[serversPorts.get(serverKey) - PORT] = -1;
                 	} catch (FreshnessException e) {
     					results[serversPorts.get(serverKey) - PORT] = -13;
+                	} catch (TooManyRequestsException e) {
+                		results[serversPorts.get(serverKey) - PORT] = -15;
                 	} catch (NonceTimeoutException e) {
                 		results[serversPorts.get(serverKey) - PORT] = -11;
     				} catch (IntegrityException e) {
@@ -904,21 +942,14 @@ public class ClientEndpoint {
         	tasks[serversPorts.get(serverKey) - PORT].start();
         }
         // FIXME está a espera que todas as threads acabem!!!
-        boolean stillAlive = true;
-        while(stillAlive) {
-        	stillAlive = false;
-            for (PublicKey serverKey : serversPorts.keySet()) {
-            	if(tasks[serversPorts.get(serverKey) - PORT].isAlive()) {
-            		stillAlive = true;
-            		break;
-            	}
-            }
-        }
+        Tasks.joinAll(tasks);
         // Get Quorum from the result to make a decision regarding the responses
         int result = getMajorityOfQuorumInt(results);
         switch (result) {
             case (-1):
                 throw new UserNotRegisteredException(ExceptionsMessages.USER_NOT_REGISTERED);
+            case (-15):
+                throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
             case (-11):
                 throw new NonceTimeoutException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
             case (-12):
@@ -942,7 +973,7 @@ public class ClientEndpoint {
             operation += "GENERAL";
         }
         Request request = new Request(operation, getPublicKey(), serverNonce, cryptoManager.getNonce(serverKey));
-    	Envelope envelopeRequest = new Envelope(request, cryptoManager.signRequest(request));
+    	Envelope envelopeRequest = new Envelope(request);
     	// Get wts inside a Response
     	int singleWts = -666;
 		try {
@@ -952,11 +983,12 @@ public class ClientEndpoint {
                 throw new FreshnessException(errorMessage);
             }
 	    	// Verify Response's Integrity
-	        if(!cryptoManager.verifyResponse(envelopeResponse.getResponse(), envelopeResponse.getSignature(), serverKey)) {
+	        if(!verifyResponse(envelopeResponse, serverKey)) {
 	            throw new IntegrityException(ExceptionsMessages.OPERATION_NOT_POSSIBLE);
 	        } else {
 	        	singleWts = envelopeResponse.getResponse().getTs();
 	        }
+	        ResponseChecker.checkAdmission(envelopeResponse.getResponse());
 	        ResponseChecker.checkAskWts(envelopeResponse.getResponse());
 	        return singleWts;
 		} catch (ClassNotFoundException e) {
@@ -0,0 +1,156 @@
+package client;
+
+import library.Envelope;
+import library.SocketConnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+// Keeps framed connections to every replica open between operations
+public class ConnectionPool {
+
+    private static final int POOL_SIZE = Integer.getInteger("dpas.client.pool.size", 4);
+    private static final long IDLE_TIMEOUT = Long.getLong("dpas.client.pool.idle", 30000L);
+    private static final boolean PIPELINED = Boolean.getBoolean("dpas.client.pipelined");
+
+    private final String address;
+    private final int timeout;
+    private final int poolSize;
+    private final boolean pipelined;
+    private final Map<Integer, BlockingDeque<PooledConnection>> idle = new ConcurrentHashMap<>();
+    private final Map<Integer, PipelinedConnection> pipelines = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String address, int timeout) {
+        this(address, timeout, POOL_SIZE, PIPELINED);
+    }
+
+    // In pipelined mode every replica gets a single link shared by all concurrent requests
+    public ConnectionPool(String address, int timeout, int poolSize, boolean pipelined) {
+        this.address = address;
+        this.timeout = timeout;
+        this.poolSize = poolSize;
+        this.pipelined = pipelined;
+    }
+
+    // One request, one response. A reused link that turns out to be dead is replaced once
+    public Envelope sendReceive(Envelope envelope, int port) throws IOException, ClassNotFoundException {
+        if(pipelined) {
+            return pipeline(port).sendReceive(envelope);
+        }
+        PooledConnection pooled = borrow(port);
+        try {
+            return exchange(pooled, envelope, port);
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (EOFException | SocketException e) {
+            if(!pooled.reused) {
+                throw e;
+            }
+            // Replica closed the link while it sat in the pool (e.g. it restarted)
+            return exchange(open(port), envelope, port);
+        }
+    }
+
+    private Envelope exchange(PooledConnection pooled, Envelope envelope, int port) throws IOException, ClassNotFoundException {
+        boolean healthy = false;
+        try {
+            pooled.connection.send(envelope);
+            Envelope response = pooled.connection.receive();
+            healthy = true;
+            return response;
+        } finally {
+            if(healthy) {
+                release(pooled, port);
+            } else {
+                discard(pooled);
+            }
+        }
+    }
+
+    private PipelinedConnection pipeline(int port) throws IOException {
+        synchronized(pipelines) {
+            PipelinedConnection pipeline = pipelines.get(port);
+            if(pipeline == null || !pipeline.isOpen()) {
+                if(closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                pipeline = new PipelinedConnection(address, port, timeout);
+                pipelines.put(port, pipeline);
+            }
+            return pipeline;
+        }
+    }
+
+    private PooledConnection borrow(int port) throws IOException {
+        BlockingDeque<PooledConnection> connections = idle.get(port);
+        PooledConnection pooled;
+        while(connections != null && (pooled = connections.pollFirst()) != null) {
+            if(System.currentTimeMillis() - pooled.lastUsed > IDLE_TIMEOUT || !pooled.connection.isOpen() || pooled.connection.hasPendingInput()) {
+                discard(pooled);
+                continue;
+            }
+            pooled.reused = true;
+            return pooled;
+        }
+        return open(port);
+    }
+
+    private PooledConnection open(int port) throws IOException {
+        SocketConnection connection = new SocketConnection(address, port);
+        connection.setTimeout(timeout);
+        connection.setKeepAlive(true);
+        return new PooledConnection(connection);
+    }
+
+    private void release(PooledConnection pooled, int port) {
+        pooled.lastUsed = System.currentTimeMillis();
+        BlockingDeque<PooledConnection> connections = idle.computeIfAbsent(port, p -> new LinkedBlockingDeque<>(poolSize));
+        // Most recently used first, so the extra links age out
+        if(closed || !connections.offerFirst(pooled)) {
+            discard(pooled);
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        try {
+            pooled.connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        synchronized(pipelines) {
+            for(PipelinedConnection pipeline : pipelines.values()) {
+                pipeline.close();
+            }
+            pipelines.clear();
+        }
+        for(BlockingDeque<PooledConnection> connections : idle.values()) {
+            PooledConnection pooled;
+            while((pooled = connections.pollFirst()) != null) {
+                discard(pooled);
+            }
+        }
+    }
+
+
+    private static class PooledConnection {
+
+        private final SocketConnection connection;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean reused = false;
+
+        PooledConnection(SocketConnection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -1,20 +1,12 @@
 package client;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.security.InvalidKeyException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
 import java.security.SignatureException;
-import java.security.UnrecoverableEntryException;
-import java.security.cert.CertificateException;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -23,6 +15,8 @@ import library.Pair;
 import library.Quadruplet;
 import library.Request;
 import library.Response;
+import library.Session;
+import library.Signatures;
 import org.json.simple.JSONObject;
 
 public class CryptoManager {
@@ -43,19 +37,7 @@ public class CryptoManager {
 
 	byte[] signRequest(Request request) {
 		try {
-			PrivateKey key = getPrivateKeyFromKs();
-			// Initialize needed structures
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert request to byteArray
-			out.writeObject(request);
-			out.flush();
-			byte[] requestBytes = bos.toByteArray();
-			// Sign with private key
-			signature.initSign(key);
-			signature.update(requestBytes);
-			return signature.sign();
+			return Signatures.sign(getPrivateKeyFromKs(), request);
 		} catch (
 			InvalidKeyException		 |
 			NoSuchAlgorithmException |
@@ -66,28 +48,17 @@ public class CryptoManager {
 		return new byte[0];
 	}
 
-	byte[] signMessage(Quadruplet<String, Integer, String, int[]> message){
-    	try{
-			PrivateKey key = getPrivateKeyFromKs();
-			// Initialize needed structures
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			out.writeObject(message);
-			out.flush();
-			byte[] objectBytes = bos.toByteArray();
-			// Sign with private key
-			signature.initSign(key);
-			signature.update(objectBytes);
-			return signature.sign();
+	byte[] signMessage(Quadruplet<String, Integer, String, int[]> message) {
+		try {
+			return Signatures.sign(getPrivateKeyFromKs(), message);
 		} catch (
-			 InvalidKeyException		 |
-			 NoSuchAlgorithmException |
-			 SignatureException		 |
-			 IOException e) {
-			 e.printStackTrace();
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			SignatureException		 |
+			IOException e) {
+			e.printStackTrace();
 		}
-    	return new byte[0];
+		return new byte[0];
 	}
 
 	boolean verifyMessage(JSONObject object, byte[] signature){
@@ -100,23 +71,12 @@ public class CryptoManager {
 						,  object.get("ref"));
 
 		try {
-			// Initialize needed structures
-			Signature verifySignature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert response to byteArray
-			out.writeObject(quadruplet);
-			out.flush();
-			byte[] messageBytes = bos.toByteArray();
-			// Verify signature
-			verifySignature.initVerify(keyFrom);
-			verifySignature.update(messageBytes);
-			return verifySignature.verify(signature);
+			return Signatures.verify(keyFrom, quadruplet, signature);
 		} catch (
-				  InvalidKeyException 	 |
-						  NoSuchAlgorithmException |
-						  SignatureException 		 |
-						  IOException e) {
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			SignatureException		 |
+			IOException e) {
 			e.printStackTrace();
 		}
 		return false;
@@ -125,19 +85,7 @@ public class CryptoManager {
 
 	byte[] signResponse(Response response) {
 		try {
-			PrivateKey key = getPrivateKeyFromKs();
-			// Initialize needed structures
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert response to byteArray
-			out.writeObject(response);
-			out.flush();
-			byte[] responseBytes = bos.toByteArray();
-			// Sign with private key
-			signature.initSign(key);
-			signature.update(responseBytes);
-			return signature.sign();
+			return Signatures.sign(getPrivateKeyFromKs(), response);
 		} catch (
 			InvalidKeyException		 |
 			NoSuchAlgorithmException |
@@ -150,46 +98,48 @@ public class CryptoManager {
 	
 	boolean verifyRequest(Request request, byte[] signature, PublicKey keyFrom) {
 		try {
-			// Initialize needed structures
-			Signature verifySignature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert response to byteArray
-			out.writeObject(request);
-			out.flush();
-			byte[] requestBytes = bos.toByteArray();
-			// Verify signature
-			verifySignature.initVerify(keyFrom);
-			verifySignature.update(requestBytes);
-			return verifySignature.verify(signature);
+			return Signatures.verify(keyFrom, request, signature);
 		} catch (
-			InvalidKeyException 	 |
+			InvalidKeyException		 |
 			NoSuchAlgorithmException |
-			SignatureException 		 |
+			SignatureException		 |
 			IOException e) {
 			e.printStackTrace();
 		}
 		return false;
 	}
 	
+	byte[] macRequest(Request request, Session session) {
+		try {
+			return Signatures.mac(session.getKey(), request);
+		} catch (
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			IOException e) {
+			e.printStackTrace();
+		}
+		return new byte[0];
+	}
+
+	boolean verifyResponse(Response response, byte[] tag, Session session) {
+		try {
+			return Signatures.verifyMac(session.getKey(), response, tag);
+		} catch (
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 	boolean verifyResponse(Response response, byte[] signature, PublicKey keyFrom) {
 		try {
-			// Initialize needed structures
-			Signature verifySignature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert response to byteArray
-			out.writeObject(response);
-			out.flush();
-			byte[] responseBytes = bos.toByteArray();
-			// Verify signature
-			verifySignature.initVerify(keyFrom);
-			verifySignature.update(responseBytes);
-			return verifySignature.verify(signature);
+			return Signatures.verify(keyFrom, response, signature);
 		} catch (
-			InvalidKeyException 	 |
+			InvalidKeyException		 |
 			NoSuchAlgorithmException |
-			SignatureException 		 |
+			SignatureException		 |
 			IOException e) {
 			e.printStackTrace();
 		}
@@ -230,75 +180,21 @@ public class CryptoManager {
 //									     //
 ///////////////////////////////////////////
     
+    // Keys come from the process wide cache of this user's keystore
     PrivateKey getPrivateKeyFromKs(){
-        char[] passphrase = "changeit".toCharArray();
-        KeyStore ks = null;
-        PrivateKey key = null;
-
-        try {
-            ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream("keystores/" + username + "_keystore"), passphrase);
-            key = (PrivateKey) ks.getKey(username, passphrase);
-        } catch (
-            NoSuchAlgorithmException | 
-            UnrecoverableEntryException | 
-            KeyStoreException | 
-            CertificateException | 
-            IOException e) {
-            e.printStackTrace();
-        }
-        return key;
+        return KeyCache.forUser(username).getPrivateKey();
     }
     
     PublicKey getPublicKeyFromKs(String entity){
-        char[] passphrase = "changeit".toCharArray();
-        KeyStore ks = null;
-
-        try{
-            ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream("keystores/" + username + "_keystore"), passphrase);
-            return ks.getCertificate(entity).getPublicKey();
-        } catch (
-            CertificateException | 
-            NoSuchAlgorithmException | 
-            IOException | 
-            KeyStoreException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return KeyCache.forUser(username).getPublicKey(entity);
     }
 
 	HashMap<PublicKey, Integer> initiateServersPorts(int nServers){
 
 		HashMap<PublicKey, Integer> result = new HashMap<>();
 
-		int i = 0;
-
-		char[] passphrase = "changeit".toCharArray();
-		KeyStore ks = null;
-
-		try{
-
-			ks = KeyStore.getInstance("JKS");
-			ks.load(new FileInputStream("keystores/" + username + "_keystore"), passphrase);
-
-		} catch (CertificateException e) {
-			e.printStackTrace();
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (KeyStoreException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		while(i < nServers){
-			try {
-				result.put(ks.getCertificate("server" + String.valueOf(9000 + i)).getPublicKey(), 9000 + i);
-				i++;
-			} catch (KeyStoreException e) {
-				e.printStackTrace();
-			}
+		for(int i = 0; i < nServers; i++) {
+			result.put(getPublicKeyFromKs("server" + String.valueOf(9000 + i)), 9000 + i);
 		}
 		return result;
 	}
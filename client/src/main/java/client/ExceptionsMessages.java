@@ -4,6 +4,8 @@ public class ExceptionsMessages {
 	
 	// General (for all methods)
 	public final static String OPERATION_NOT_POSSIBLE = "The operation was not possible, please try again!";
+	public final static String TOO_MANY_REQUESTS = "Too many requests, please wait a moment and try again!";
+	public final static String SESSION_EXPIRED = "The session with the server expired, please try again!";
 	
 	// Specific depending on method
 	public final static String ALREADY_REGISTERED = "User is already registered in the DPAS!";
@@ -0,0 +1,86 @@
+package client;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A user's keystore read once per process: the user's private key and every server and user certificate.
+// Shared by every ClientEndpoint and Listener of that user, so reads stop reloading the keystore
+final class KeyCache {
+
+    private static final KeyCache EMPTY = new KeyCache(null, Collections.<String, PublicKey>emptyMap());
+    private static final ConcurrentHashMap<String, KeyCache> CACHES = new ConcurrentHashMap<>();
+
+    private final PrivateKey privateKey;
+    private final Map<String, PublicKey> publicKeys;
+
+    private KeyCache(PrivateKey privateKey, Map<String, PublicKey> publicKeys) {
+        this.privateKey = privateKey;
+        this.publicKeys = publicKeys;
+    }
+
+    // A keystore that cannot be read is not cached, the next call tries again
+    static KeyCache forUser(String username) {
+        if(username == null) {
+            return EMPTY;
+        }
+        KeyCache cache = CACHES.get(username);
+        if(cache == null) {
+            try {
+                cache = load("keystores/" + username + "_keystore", "changeit".toCharArray(), username);
+            } catch (
+                GeneralSecurityException |
+                IOException e) {
+                e.printStackTrace();
+                return EMPTY;
+            }
+            KeyCache loaded = CACHES.putIfAbsent(username, cache);
+            if(loaded != null) {
+                cache = loaded;
+            }
+        }
+        return cache;
+    }
+
+    private static KeyCache load(String path, char[] passphrase, String privateAlias) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try(FileInputStream in = new FileInputStream(path)) {
+            ks.load(in, passphrase);
+        }
+        Map<String, PublicKey> publicKeys = new HashMap<>();
+        Enumeration<String> aliases = ks.aliases();
+        while(aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            Certificate certificate = ks.getCertificate(alias);
+            if(certificate != null) {
+                publicKeys.put(normalize(alias), certificate.getPublicKey());
+            }
+        }
+        PrivateKey privateKey = (PrivateKey) ks.getKey(privateAlias, passphrase);
+        return new KeyCache(privateKey, Collections.unmodifiableMap(publicKeys));
+    }
+
+    PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    // Null for aliases the keystore does not have
+    PublicKey getPublicKey(String alias) {
+        return alias == null ? null : publicKeys.get(normalize(alias));
+    }
+
+    // JKS aliases are case insensitive
+    private static String normalize(String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+}
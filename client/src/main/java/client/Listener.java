@@ -1,6 +1,10 @@
 package client;
 
+import library.Connection;
 import library.Envelope;
+import library.FrameCodec;
+import library.FrameHandler;
+import library.FrameServer;
 import library.Pair;
 import library.Request;
 import library.Response;
@@ -8,11 +12,6 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.security.PublicKey;
 import java.util.*;
 import java.util.Collection;
@@ -20,33 +19,36 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class Listener implements Runnable{
+public class Listener implements FrameHandler {
 
-    private ServerSocket endpoint;
+    private FrameServer endpoint;
     private int nQuorum;
     private CryptoManager cryptoManager = null;
-    private Thread listenerThread;
     private PublicKey clientKey;
     private Map<PublicKey, Integer> serversPorts = null;
     
-    private Envelope result = null;    
-    private Envelope resultGeneral = null;
+    private volatile Envelope result = null;
+    private volatile Envelope resultGeneral = null;
     private ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Envelope>> answers = null;
     private List<Pair<Integer, Envelope>> answerGeneral;
     private Map<PublicKey , Pair<Integer, Envelope>> answerGeneralExceptions;
 
-    public Listener(ServerSocket ss, int nQuorum, String userName, PublicKey key, Map<PublicKey, Integer> serversPortsFromEndpoint) {
+    public Listener(int port, int nQuorum, String userName, PublicKey key, Map<PublicKey, Integer> serversPortsFromEndpoint) throws IOException {
 
         cryptoManager = new CryptoManager(userName);
         answers = new ConcurrentHashMap<>();
         answerGeneralExceptions = new HashMap<>();
         answerGeneral = Collections.synchronizedList(new ArrayList<Pair<Integer, Envelope>>());
         answerGeneralExceptions = new HashMap<PublicKey, Pair<Integer, Envelope>>();
-        endpoint = ss;
         this.nQuorum = nQuorum;
         this.clientKey = key;
-        newListener();
         serversPorts = serversPortsFromEndpoint;
+        // A single event loop is enough for the handful of replicas answering one read
+        endpoint = new FrameServer(port, 1, this, "listener-" + userName, true);
+    }
+
+    public void close() {
+        endpoint.close();
     }
 
     public Envelope getResultGeneral() {
@@ -65,28 +67,12 @@ public class Listener implements Runnable{
         this.result = result;
     }
 
-    public void run() {
-
-        Socket socket = null;
-        ObjectInputStream inStream;
-        ObjectOutputStream outputStream;
-
-        try {
-            socket = endpoint.accept();
-
-        } catch(IOException e){
-            return;
-        }
-
-        newListener();
+    @Override
+    public void onFrame(Connection connection, byte[] frame) {
 
         try {
-            // inStream receives objects
-            inStream = new ObjectInputStream(socket.getInputStream());
-            // outStream sends objects
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
             // Receive an envelope
-            Envelope envelope = (Envelope) inStream.readObject();
+            Envelope envelope = FrameCodec.decode(frame);
             if(envelope.getRequest() != null) {
             	// Switch between two possible operations
                 switch(envelope.getRequest().getOperation()) {
@@ -95,7 +81,7 @@ public class Listener implements Runnable{
                             cryptoManager.generateRandomNonce(envelope.getRequest().getPublicKey());
                             Response response         = new Response(true, cryptoManager.getNonce(envelope.getRequest().getPublicKey()), clientKey);
                             Envelope responseEnvelope = new Envelope(response, cryptoManager.signResponse(response));
-                            outputStream.writeObject(responseEnvelope);
+                            connection.send(responseEnvelope);
             			}
             			break;
             		case "VALUE":
@@ -131,9 +117,7 @@ public class Listener implements Runnable{
                         break;
                 }
             }
-            outputStream.close();
-            inStream.close();
-            socket.close();
+            connection.close();
         } catch (IOException e) {
             e.printStackTrace();
         } catch (ClassNotFoundException e) {
@@ -142,11 +126,6 @@ public class Listener implements Runnable{
 
     }
 
-    private void newListener() {
-        listenerThread = new Thread(this);
-        listenerThread.start();
-    }
-
     private Envelope checkAnswer(Envelope envelope) {
         //FALTA CHECKAR INTEGRITY
         //FALTA CHECKAR SE SAO EXCEPTIONS
@@ -169,7 +148,6 @@ public class Listener implements Runnable{
             if(answers.get(timestamp).size() > nQuorum) {
                 Envelope result = checkQuorum(answers.get(timestamp).values());
                 if(result != null) {
-                    listenerThread.interrupt();
                     return result;
                 }
             }
@@ -0,0 +1,93 @@
+package client;
+
+import library.Envelope;
+import library.SocketConnection;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Many requests in flight on one link: each carries an id and the replica answers them in any order
+public class PipelinedConnection {
+
+    private final SocketConnection connection;
+    private final int timeout;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Envelope>> pending = new ConcurrentHashMap<>();
+    private volatile boolean open = true;
+
+    public PipelinedConnection(String address, int port, int timeout) throws IOException {
+        this.connection = new SocketConnection(address, port);
+        this.connection.setKeepAlive(true);
+        this.timeout = timeout;
+        Thread reader = new Thread(this::readReplies, "pipeline-" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public Envelope sendReceive(Envelope envelope) throws IOException, ClassNotFoundException {
+        long id = nextId.incrementAndGet();
+        CompletableFuture<Envelope> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        try {
+            if(!open) {
+                throw new IOException("Pipelined connection is closed");
+            }
+            connection.send(envelope.withRequestId(id));
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No reply to request " + id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    private void readReplies() {
+        try {
+            while(open) {
+                Envelope envelope = connection.receive();
+                CompletableFuture<Envelope> reply = pending.get(envelope.getRequestId());
+                // Replies to requests that already timed out are dropped
+                if(reply != null) {
+                    reply.complete(envelope);
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            failAll(e);
+        }
+    }
+
+    private void failAll(Exception cause) {
+        open = false;
+        for(CompletableFuture<Envelope> reply : pending.values()) {
+            reply.completeExceptionally(cause);
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        failAll(new IOException("Pipelined connection closed"));
+    }
+}
@@ -1,11 +1,9 @@
 package client;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 
 import library.Envelope;
+import library.SocketConnection;
 
 public class ReplayAttacker {
 	
@@ -26,16 +24,8 @@ public class ReplayAttacker {
     }
     
     /***** Connection auxiliary methods *****/
-    private ObjectOutputStream createOutputStream(Socket socket) throws IOException {
-        return new ObjectOutputStream(socket.getOutputStream());
-    }
-
-    private ObjectInputStream createInputStream(Socket socket) throws IOException {
-        return new ObjectInputStream(socket.getInputStream());
-    }
-    
-    private Socket createSocket() throws IOException {
-        return new Socket(getServerAddress(), 9000);
+    private SocketConnection createConnection() throws IOException {
+        return new SocketConnection(getServerAddress(), 9000);
     }
     
     /***** Replay attack method *****/
@@ -43,8 +33,9 @@ public class ReplayAttacker {
         try {
             int i = 0;
             while(i < n_replays){
-                Socket socket = createSocket();
-                createOutputStream(socket).writeObject(envelope);
+                try(SocketConnection connection = createConnection()) {
+                    connection.send(envelope);
+                }
                 i++;
             }
         } catch (IOException e) {
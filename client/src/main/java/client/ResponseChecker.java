@@ -4,6 +4,8 @@ import exceptions.AlreadyRegisteredException;
 import exceptions.InvalidAnnouncementException;
 import exceptions.InvalidPostsNumberException;
 import exceptions.MessageTooBigException;
+import exceptions.SessionExpiredException;
+import exceptions.TooManyRequestsException;
 import exceptions.TooMuchAnnouncementsException;
 import exceptions.UnknownPublicKeyException;
 import exceptions.UserNotRegisteredException;
@@ -17,6 +19,16 @@ public class ResponseChecker {
 //															//
 //////////////////////////////////////////////////////////////
 	
+    // Replicas shed clients over their rate with -15 and refuse unknown sessions with -16 before doing the operation
+    public static void checkAdmission(Response response) throws TooManyRequestsException, SessionExpiredException {
+        if(!response.getSuccess() && response.getErrorCode() == -15) {
+            throw new TooManyRequestsException(ExceptionsMessages.TOO_MANY_REQUESTS);
+        }
+        if(!response.getSuccess() && response.getErrorCode() == -16) {
+            throw new SessionExpiredException(ExceptionsMessages.SESSION_EXPIRED);
+        }
+    }
+
     public static void checkRegister(Response response) throws AlreadyRegisteredException, UnknownPublicKeyException {
         if(!response.getSuccess()){
             int error = response.getErrorCode();
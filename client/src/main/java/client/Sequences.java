@@ -0,0 +1,45 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// With dpas.client.freshness=counter a user numbers its requests to each replica instead of asking it for a nonce
+// first, the replica refuses a number it already saw (see library.ReplayWindow). Shared by every ClientEndpoint of
+// that user in the process, so they never reuse each other's numbers
+final class Sequences {
+
+    static final boolean ENABLED = "counter".equalsIgnoreCase(System.getProperty("dpas.client.freshness"));
+
+    private static final ConcurrentHashMap<String, Sequences> USERS = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<PublicKey, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private Sequences() {}
+
+    static Sequences forUser(String username) {
+        Sequences user = USERS.get(username);
+        if(user == null) {
+            user = new Sequences();
+            Sequences existing = USERS.putIfAbsent(username, user);
+            if(existing != null) {
+                user = existing;
+            }
+        }
+        return user;
+    }
+
+    // Numbers start from the clock in microseconds, so a restarted client is already past the ones it used before
+    byte[] next(PublicKey serverKey) {
+        AtomicLong counter = counters.get(serverKey);
+        if(counter == null) {
+            counter = new AtomicLong(System.currentTimeMillis() * 1000);
+            AtomicLong existing = counters.putIfAbsent(serverKey, counter);
+            if(existing != null) {
+                counter = existing;
+            }
+        }
+        return ByteBuffer.allocate(8).putLong(counter.incrementAndGet()).array();
+    }
+}
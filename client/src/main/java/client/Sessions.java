@@ -0,0 +1,57 @@
+package client;
+
+import library.Session;
+
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The session a user has open with each replica (see library.Session), shared by every ClientEndpoint of that user
+// in the process. Only used with dpas.client.session=true
+final class Sessions {
+
+    static final boolean ENABLED = Boolean.getBoolean("dpas.client.session");
+    // A replica that did not open a session is asked again after this long, requests to it are signed meanwhile
+    private static final long RETRY = Long.getLong("dpas.client.session.retry", 60000L);
+
+    private static final ConcurrentHashMap<String, Sessions> USERS = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<PublicKey, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PublicKey, Long> refused = new ConcurrentHashMap<>();
+
+    private Sessions() {}
+
+    static Sessions forUser(String username) {
+        Sessions user = USERS.get(username);
+        if(user == null) {
+            user = new Sessions();
+            Sessions existing = USERS.putIfAbsent(username, user);
+            if(existing != null) {
+                user = existing;
+            }
+        }
+        return user;
+    }
+
+    Session get(PublicKey serverKey) {
+        return sessions.get(serverKey);
+    }
+
+    void put(PublicKey serverKey, Session session) {
+        sessions.put(serverKey, session);
+        refused.remove(serverKey);
+    }
+
+    // Only if no other thread replaced it already
+    void drop(PublicKey serverKey, Session session) {
+        sessions.remove(serverKey, session);
+    }
+
+    void refuse(PublicKey serverKey) {
+        refused.put(serverKey, System.currentTimeMillis() + RETRY);
+    }
+
+    boolean mayOpen(PublicKey serverKey) {
+        Long until = refused.get(serverKey);
+        return until == null || System.currentTimeMillis() >= until;
+    }
+}
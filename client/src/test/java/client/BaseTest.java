@@ -7,11 +7,9 @@ import org.junit.BeforeClass;
 
 import library.Envelope;
 import library.Request;
+import library.SocketConnection;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.*;
 
@@ -71,12 +69,9 @@ public class BaseTest {
         int port = PORT;
         int i = 0;
         while(i < (faults*3) + 1) {
-            try(Socket socket = new Socket("localhost", port++)) {
-                ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                outputStream.writeObject(new Envelope(new Request("DELETEALL")));
-				Envelope confirmDelete = (Envelope) inputStream.readObject();
-                outputStream.close();
+            try(SocketConnection connection = new SocketConnection("localhost", port++)) {
+                connection.send(new Envelope(new Request("DELETEALL")));
+				Envelope confirmDelete = connection.receive();
                 i++;
             } catch (
             		IOException |
@@ -165,13 +160,8 @@ public class BaseTest {
     }
 
     public static void shutDown() {
-        Socket socket = null;
-        try {
-            socket = new Socket(serverAddress, 9000);
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-            outputStream.writeObject(new Request("SHUTDOWN"));
-            outputStream.close();
-            socket.close();
+        try(SocketConnection connection = new SocketConnection(serverAddress, 9000)) {
+            connection.send(new Envelope(new Request("SHUTDOWN")));
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -179,7 +169,6 @@ public class BaseTest {
     }
 
     public static void setReplayFlag(boolean flag, int nServers) {
-        Socket socket = null;
         String message = "REPLAY_FLAG_";
         if(flag) {
             message+="TRUE";
@@ -191,13 +180,10 @@ public class BaseTest {
         	int port = PORT;
             int i = 0;
             while(i < nServers) {
-	            socket = new Socket(serverAddress, port + i);
-	            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-	            ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-	            outputStream.writeObject(new Envelope(new Request(message)));
-	            Envelope confirmReplay = (Envelope) inputStream.readObject();
-	            outputStream.close();
-	            socket.close();
+	            SocketConnection connection = new SocketConnection(serverAddress, port + i);
+	            connection.send(new Envelope(new Request(message)));
+	            Envelope confirmReplay = connection.receive();
+	            connection.close();
             }
         } catch (IOException |
                 ClassNotFoundException e) {
@@ -206,7 +192,6 @@ public class BaseTest {
     }
 
     public static void setIntegrityFlag(boolean flag, int nServers) {
-        Socket socket = null;
         String message = "INTEGRITY_FLAG_";
         if(flag){
             message+="TRUE";
@@ -218,13 +203,10 @@ public class BaseTest {
         	int port = PORT;
             int i = 0;
             while(i < nServers){
-	            socket = new Socket(serverAddress, port + i);
-	            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-	            ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-	            outputStream.writeObject(new Envelope(new Request(message)));
-	            Envelope confirmIntegrity = (Envelope) inputStream.readObject();
-	            outputStream.close();
-	            socket.close();
+	            SocketConnection connection = new SocketConnection(serverAddress, port + i);
+	            connection.send(new Envelope(new Request(message)));
+	            Envelope confirmIntegrity = connection.receive();
+	            connection.close();
 	            i++;
             }
 
@@ -235,7 +217,6 @@ public class BaseTest {
     }
     
     public static void setDropNonceFlag(boolean flag, int nServers){
-        Socket socket = null;
         String message = "DROP_NONCE_FLAG_";
         if(flag){
             message+="TRUE";
@@ -247,14 +228,10 @@ public class BaseTest {
             int port = PORT;
             int i = 0;
             while(i < nServers){
-                socket = new Socket(serverAddress, port + i);
-                ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-                outputStream.writeObject(new Envelope(new Request(message)));
-                ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                Envelope confirmDelete = (Envelope) inputStream.readObject();
-                inputStream.close();
-                outputStream.close();
-                socket.close();
+                SocketConnection connection = new SocketConnection(serverAddress, port + i);
+                connection.send(new Envelope(new Request(message)));
+                Envelope confirmDelete = connection.receive();
+                connection.close();
                 i++;
             }
 
@@ -266,7 +243,6 @@ public class BaseTest {
     }
     
     public static void setDropOperationFlag(boolean flag, int nServers){
-        Socket socket = null;
         String message = "DROP_OPERATION_FLAG_";
         if(flag){
             message+="TRUE";
@@ -278,14 +254,10 @@ public class BaseTest {
             int port = PORT;
             int i = 0;
             while(i < nServers){
-                socket = new Socket(serverAddress, port + i);
-                ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                outputStream.writeObject(new Envelope(new Request(message)));
-                Envelope confirmDelete = (Envelope) inputStream.readObject();
-                inputStream.close();
-                outputStream.close();
-                socket.close();
+                SocketConnection connection = new SocketConnection(serverAddress, port + i);
+                connection.send(new Envelope(new Request(message)));
+                Envelope confirmDelete = connection.receive();
+                connection.close();
                 i++;
             }
 
@@ -297,7 +269,6 @@ public class BaseTest {
     }
 
     public static void setAtomicWriteFlag(boolean flag){
-        Socket socket = null;
         String message = "ATOMIC_WRITE_FLAG_";
         if(flag){
             message+="TRUE";
@@ -309,14 +280,10 @@ public class BaseTest {
             int port = PORT;
             int i = 0;
             while(i < 4){
-                socket = new Socket(serverAddress, port + i);
-                ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                outputStream.writeObject(new Envelope(new Request(message)));
-                Envelope confirmDelete = (Envelope) inputStream.readObject();
-                inputStream.close();
-                outputStream.close();
-                socket.close();
+                SocketConnection connection = new SocketConnection(serverAddress, port + i);
+                connection.send(new Envelope(new Request(message)));
+                Envelope confirmDelete = connection.receive();
+                connection.close();
                 i++;
             }
 
@@ -339,11 +306,9 @@ public class BaseTest {
         int i = 0;
         while(i < 4){
             try {
-                Socket socket = new Socket(serverAddress, port + i);
-                ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-                outputStream.writeObject(new Envelope(new Request(message)));
-                ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                Envelope confirmDelete = (Envelope) inputStream.readObject();
+                SocketConnection connection = new SocketConnection(serverAddress, port + i);
+                connection.send(new Envelope(new Request(message)));
+                Envelope confirmDelete = connection.receive();
                 i++;
             } catch (UnknownHostException e) {
                 e.printStackTrace();
@@ -0,0 +1,10 @@
+package exceptions;
+
+// A replica no longer knows the session the request was MAC'd with, the operation can be retried on a new one
+public class SessionExpiredException extends NonceTimeoutException {
+
+    public SessionExpiredException(String message){
+        super(message);
+    }
+
+}
@@ -0,0 +1,10 @@
+package exceptions;
+
+// A replica shed the request because the client is over its rate, the operation can be retried later
+public class TooManyRequestsException extends NonceTimeoutException {
+
+    public TooManyRequestsException(String message){
+        super(message);
+    }
+
+}
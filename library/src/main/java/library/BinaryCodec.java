@@ -0,0 +1,614 @@
+package library;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Compact replacement for Java serialization of envelopes: [version][tagged object graph]
+//
+// With dpas.sign.format=java signatures cover the Java serialization of a Request/Response, so a decoded
+// graph has to serialize back to the very same bytes. That is why objects shared on the sending
+// side are sent once and referenced by handle afterwards (like Java serialization does) and why
+// every decoded value is a fresh instance.
+public class BinaryCodec {
+
+    public static final byte VERSION = 0x01;
+
+    private static final int MAX_DEPTH = 32;
+    private static final int KEY_CACHE_SIZE = 1024;
+
+    // Value tags
+    private static final int NULL = 0;
+    private static final int REF = 1;
+    private static final int STRING = 2;
+    private static final int KNOWN_STRING = 3;
+    private static final int INTEGER = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int BOOLEAN = 7;
+    private static final int BYTES = 8;
+    private static final int INTS = 9;
+    private static final int JSON_OBJECT = 10;
+    private static final int JSON_ARRAY = 11;
+    private static final int PUBLIC_KEY = 12;
+    private static final int ENVELOPE = 13;
+    private static final int REQUEST = 14;
+    private static final int RESPONSE = 15;
+
+    // Operations, operation types and JSON keys travel as a single byte
+    private static final String[] KNOWN_STRINGS = {
+        "REGISTER", "POST", "POSTGENERAL", "READ", "READGENERAL", "READCOMPLETE", "NONCE", "SERVERNONCE",
+        "WTS", "WTSGENERAL", "ECHO", "READY", "VALUE", "DELETEALL", "SHUTDOWN",
+        "message", "signature", "announcementList", "user", "id", "date", "ts", "ref", "ref_announcements",
+        "RSA", "X.509", "SESSION"
+    };
+    private static final Map<String, Integer> KNOWN_INDEX = new HashMap<>();
+    static {
+        for(int i = 0; i < KNOWN_STRINGS.length; i++) {
+            KNOWN_INDEX.put(KNOWN_STRINGS[i], i);
+        }
+    }
+
+    // Parsing an X.509 key is the most expensive part of decoding, keys repeat a lot
+    private static final Map<ByteBuffer, PublicKey> keyCache = new ConcurrentHashMap<>();
+
+    private BinaryCodec() {}
+
+    public static byte[] encode(Envelope envelope) throws IOException {
+        Writer writer = new Writer();
+        writer.out.write(VERSION);
+        writer.writeValue(envelope, 0);
+        return writer.out.toByteArray();
+    }
+
+    // Shared with CanonicalForm, whose messages hold no back references so any cached key will do
+    static PublicKey publicKey(String algorithm, byte[] encoded) throws IOException {
+        PublicKey key = keyCache.get(ByteBuffer.wrap(encoded));
+        if(key == null || !algorithm.equals(key.getAlgorithm())) {
+            key = parsePublicKey(algorithm, encoded);
+            if(keyCache.size() >= KEY_CACHE_SIZE) {
+                keyCache.clear();
+            }
+            keyCache.putIfAbsent(ByteBuffer.wrap(encoded), key);
+        }
+        return key;
+    }
+
+    private static PublicKey parsePublicKey(String algorithm, byte[] encoded) throws IOException {
+        try {
+            return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (Exception e) {
+            throw new StreamCorruptedException("Invalid public key: " + e.getMessage());
+        }
+    }
+
+    public static Envelope decode(byte[] payload) throws IOException {
+        if(payload.length == 0 || payload[0] != VERSION) {
+            throw new StreamCorruptedException("Unknown binary codec version");
+        }
+        Reader reader = new Reader(payload, 1);
+        Object value = reader.readValue(0);
+        if(!(value instanceof Envelope) || reader.position != payload.length) {
+            throw new StreamCorruptedException("Frame does not hold a single envelope");
+        }
+        return (Envelope) value;
+    }
+
+
+//////////////////////////////////////////
+//
+//              Encoding
+//
+//////////////////////////////////////////
+
+    private static class Writer {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        private final Map<Object, Integer> handles = new IdentityHashMap<>();
+
+        void writeValue(Object value, int depth) throws IOException {
+            if(value == null) {
+                out.write(NULL);
+                return;
+            }
+            if(depth > MAX_DEPTH) {
+                throw new NotSerializableException("Object graph too deep");
+            }
+            Integer handle = handles.get(value);
+            if(handle != null) {
+                out.write(REF);
+                writeVarInt(handle);
+                return;
+            }
+            Class<?> type = value.getClass();
+            // Only exact classes: a subclass could serialize to something we can't reproduce
+            if(type == String.class) {
+                Integer known = KNOWN_INDEX.get(value);
+                if(known != null) {
+                    out.write(KNOWN_STRING);
+                    writeVarInt(known);
+                } else {
+                    out.write(STRING);
+                    writeUtf((String) value);
+                }
+            } else if(type == Integer.class) {
+                out.write(INTEGER);
+                writeSignedVarInt((Integer) value);
+            } else if(type == Long.class) {
+                out.write(LONG);
+                writeSignedVarLong((Long) value);
+            } else if(type == Double.class) {
+                out.write(DOUBLE);
+                writeFixedLong(Double.doubleToRawLongBits((Double) value));
+            } else if(type == Boolean.class) {
+                out.write(BOOLEAN);
+                out.write((Boolean) value ? 1 : 0);
+            } else if(type == byte[].class) {
+                out.write(BYTES);
+                writeBytes((byte[]) value);
+            } else if(type == int[].class) {
+                out.write(INTS);
+                int[] ints = (int[]) value;
+                writeVarInt(ints.length);
+                for(int i : ints) {
+                    writeSignedVarInt(i);
+                }
+            } else if(type == JSONObject.class) {
+                out.write(JSON_OBJECT);
+                assign(value);
+                Map<?, ?> map = (Map<?, ?>) value;
+                writeVarInt(map.size());
+                for(Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey(), depth + 1);
+                    writeValue(entry.getValue(), depth + 1);
+                }
+                return;
+            } else if(type == JSONArray.class) {
+                out.write(JSON_ARRAY);
+                assign(value);
+                List<?> list = (List<?>) value;
+                writeVarInt(list.size());
+                for(Object element : list) {
+                    writeValue(element, depth + 1);
+                }
+                return;
+            } else if(value instanceof PublicKey && "X.509".equals(((PublicKey) value).getFormat())) {
+                PublicKey key = (PublicKey) value;
+                out.write(PUBLIC_KEY);
+                writeValue(key.getAlgorithm(), depth + 1);
+                writeBytes(key.getEncoded());
+            } else if(type == Envelope.class) {
+                out.write(ENVELOPE);
+                assign(value);
+                writeEnvelope((Envelope) value, depth);
+                return;
+            } else if(type == Request.class) {
+                out.write(REQUEST);
+                assign(value);
+                writeRequest((Request) value, depth);
+                return;
+            } else if(type == Response.class) {
+                out.write(RESPONSE);
+                assign(value);
+                writeResponse((Response) value, depth);
+                return;
+            } else {
+                throw new NotSerializableException(type.getName());
+            }
+            assign(value);
+        }
+
+        private void assign(Object value) {
+            handles.put(value, handles.size());
+        }
+
+        private void writeEnvelope(Envelope envelope, int depth) throws IOException {
+            writeValue(envelope.getRequest(), depth + 1);
+            writeValue(envelope.getResponse(), depth + 1);
+            writeValue(envelope.getSignature(), depth + 1);
+            writeVarLong(envelope.getRequestId());
+        }
+
+        // Only the fields an operation actually uses are written, a bit mask says which
+        private void writeRequest(Request request, int depth) throws IOException {
+            Object[] references = {
+                request.getOperation(), request.getServerNonce(), request.getClientNonce(), request.getPublicKey(),
+                request.getPublicKeyToReadFrom(), request.getMessage(), request.getAnnouncements(), request.getJsonObject(),
+                request.getUsername(), request.getSignature(), request.getEnvelope()
+            };
+            int[] numbers = { request.getNumber() + 1, request.getTs(), request.getRid(), request.getPort() };
+            writePresent(references, numbers, new Object[] { request.getSession(), request.getDigest() }, depth);
+        }
+
+        private void writeResponse(Response response, int depth) throws IOException {
+            Object[] references = {
+                response.getJsonObject(), response.getNonce(), response.getPublicKey(), response.getOperationType()
+            };
+            int[] numbers = { response.getSuccess() ? 1 : 0, response.getErrorCode(), response.getTs(), response.getRid(), response.getPort() };
+            writePresent(references, numbers, new Object[] { response.getSession() }, depth);
+        }
+
+        // Fields added later go after the numbers, so the bits older nodes know keep their place
+        private void writePresent(Object[] references, int[] numbers, Object[] later, int depth) throws IOException {
+            int mask = 0;
+            for(int i = 0; i < references.length; i++) {
+                if(references[i] != null) {
+                    mask |= 1 << i;
+                }
+            }
+            for(int i = 0; i < numbers.length; i++) {
+                if(numbers[i] != 0) {
+                    mask |= 1 << (references.length + i);
+                }
+            }
+            for(int i = 0; i < later.length; i++) {
+                if(later[i] != null) {
+                    mask |= 1 << (references.length + numbers.length + i);
+                }
+            }
+            writeVarInt(mask);
+            for(Object reference : references) {
+                if(reference != null) {
+                    writeValue(reference, depth + 1);
+                }
+            }
+            for(int number : numbers) {
+                if(number != 0) {
+                    writeSignedVarInt(number);
+                }
+            }
+            for(Object reference : later) {
+                if(reference != null) {
+                    writeValue(reference, depth + 1);
+                }
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        // Modified UTF-8 like DataOutputStream, so any String (even a lone surrogate) survives
+        private void writeUtf(String value) {
+            int length = 0;
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+            }
+            writeVarInt(length);
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if(c >= 0x0001 && c <= 0x007F) {
+                    out.write(c);
+                } else if(c > 0x07FF) {
+                    out.write(0xE0 | ((c >> 12) & 0x0F));
+                    out.write(0x80 | ((c >> 6) & 0x3F));
+                    out.write(0x80 | (c & 0x3F));
+                } else {
+                    out.write(0xC0 | ((c >> 6) & 0x1F));
+                    out.write(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void writeSignedVarInt(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        private void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) {
+            while((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private void writeFixedLong(long value) {
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (value >>> shift));
+            }
+        }
+    }
+
+
+//////////////////////////////////////////
+//
+//              Decoding
+//
+//////////////////////////////////////////
+
+    private static class Reader {
+
+        private final byte[] in;
+        private int position;
+        private final List<Object> handles = new ArrayList<>();
+        private final Map<Object, Boolean> keysInUse = new IdentityHashMap<>();
+
+        Reader(byte[] in, int position) {
+            this.in = in;
+            this.position = position;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readValue(int depth) throws IOException {
+            if(depth > MAX_DEPTH) {
+                throw new StreamCorruptedException("Object graph too deep");
+            }
+            int tag = readByte();
+            switch(tag) {
+                case NULL:
+                    return null;
+                case REF: {
+                    int handle = readVarInt();
+                    if(handle < 0 || handle >= handles.size()) {
+                        throw new StreamCorruptedException("Invalid handle " + handle);
+                    }
+                    return handles.get(handle);
+                }
+                case STRING:
+                    return assign(readUtf());
+                case KNOWN_STRING: {
+                    int index = readVarInt();
+                    if(index < 0 || index >= KNOWN_STRINGS.length) {
+                        throw new StreamCorruptedException("Unknown string " + index);
+                    }
+                    return assign(new String(KNOWN_STRINGS[index]));
+                }
+                // New boxes, not the ones valueOf shares: a value sent again without a handle was a distinct object
+                // on the sending side, and with dpas.sign.format=java a shared box would serialize differently
+                case INTEGER: {
+                    @SuppressWarnings({"deprecation", "removal"})
+                    Integer value = new Integer(readSignedVarInt());
+                    return assign(value);
+                }
+                case LONG: {
+                    @SuppressWarnings({"deprecation", "removal"})
+                    Long value = new Long(readSignedVarLong());
+                    return assign(value);
+                }
+                case DOUBLE: {
+                    @SuppressWarnings({"deprecation", "removal"})
+                    Double value = new Double(Double.longBitsToDouble(readFixedLong()));
+                    return assign(value);
+                }
+                case BOOLEAN: {
+                    @SuppressWarnings({"deprecation", "removal"})
+                    Boolean value = new Boolean(readByte() != 0);
+                    return assign(value);
+                }
+                case BYTES:
+                    return assign(readBytes());
+                case INTS: {
+                    int[] ints = new int[checkCount(readVarInt())];
+                    for(int i = 0; i < ints.length; i++) {
+                        ints[i] = readSignedVarInt();
+                    }
+                    return assign(ints);
+                }
+                case JSON_OBJECT: {
+                    JSONObject object = new JSONObject();
+                    assign(object);
+                    int size = checkCount(readVarInt());
+                    for(int i = 0; i < size; i++) {
+                        Object key = readValue(depth + 1);
+                        object.put(key, readValue(depth + 1));
+                    }
+                    return object;
+                }
+                case JSON_ARRAY: {
+                    JSONArray array = new JSONArray();
+                    assign(array);
+                    int size = checkCount(readVarInt());
+                    for(int i = 0; i < size; i++) {
+                        array.add(readValue(depth + 1));
+                    }
+                    return array;
+                }
+                case PUBLIC_KEY: {
+                    Object algorithm = readValue(depth + 1);
+                    if(!(algorithm instanceof String)) {
+                        throw new StreamCorruptedException("Invalid key algorithm");
+                    }
+                    return assign(readPublicKey((String) algorithm, readBytes()));
+                }
+                case ENVELOPE: {
+                    Envelope envelope = new Envelope((Request) null);
+                    assign(envelope);
+                    envelope.setRequest(readTyped(Request.class, depth));
+                    envelope.setResponse(readTyped(Response.class, depth));
+                    envelope.setSignature(readTyped(byte[].class, depth));
+                    envelope.setRequestId(readVarLong());
+                    return envelope;
+                }
+                case REQUEST: {
+                    Request request = new Request((String) null);
+                    assign(request);
+                    readRequest(request, depth);
+                    return request;
+                }
+                case RESPONSE: {
+                    Response response = new Response(false);
+                    assign(response);
+                    readResponse(response, depth);
+                    return response;
+                }
+                default:
+                    throw new StreamCorruptedException("Unknown tag " + tag);
+            }
+        }
+
+        private void readRequest(Request request, int depth) throws IOException {
+            int mask = readVarInt();
+            if((mask & 1) != 0) request.setOperation(readTyped(String.class, depth));
+            if((mask & 1 << 1) != 0) request.setServerNonce(readTyped(byte[].class, depth));
+            if((mask & 1 << 2) != 0) request.setClientNonce(readTyped(byte[].class, depth));
+            if((mask & 1 << 3) != 0) request.setPublicKey(readTyped(PublicKey.class, depth));
+            if((mask & 1 << 4) != 0) request.setPublicKeyToReadFrom(readTyped(PublicKey.class, depth));
+            if((mask & 1 << 5) != 0) request.setMessage(readTyped(String.class, depth));
+            if((mask & 1 << 6) != 0) request.setAnnouncements(readTyped(int[].class, depth));
+            if((mask & 1 << 7) != 0) request.setJsonObject(readTyped(JSONObject.class, depth));
+            if((mask & 1 << 8) != 0) request.setUsername(readTyped(String.class, depth));
+            if((mask & 1 << 9) != 0) request.setSignature(readTyped(byte[].class, depth));
+            if((mask & 1 << 10) != 0) request.setEnvelope(readTyped(Envelope.class, depth));
+            request.setNumber(((mask & 1 << 11) != 0 ? readSignedVarInt() : 0) - 1);
+            request.setTs((mask & 1 << 12) != 0 ? readSignedVarInt() : 0);
+            request.setRid((mask & 1 << 13) != 0 ? readSignedVarInt() : 0);
+            request.setPort((mask & 1 << 14) != 0 ? readSignedVarInt() : 0);
+            if((mask & 1 << 15) != 0) request.setSession(readTyped(byte[].class, depth));
+            if((mask & 1 << 16) != 0) request.setDigest(readTyped(byte[].class, depth));
+        }
+
+        private void readResponse(Response response, int depth) throws IOException {
+            int mask = readVarInt();
+            if((mask & 1) != 0) response.setJsonObject(readTyped(JSONObject.class, depth));
+            if((mask & 1 << 1) != 0) response.setNonce(readTyped(byte[].class, depth));
+            if((mask & 1 << 2) != 0) response.setServerKey(readTyped(PublicKey.class, depth));
+            if((mask & 1 << 3) != 0) response.setOperationType(readTyped(String.class, depth));
+            response.setSuccess(((mask & 1 << 4) != 0 ? readSignedVarInt() : 0) != 0);
+            response.setErrorCode((mask & 1 << 5) != 0 ? readSignedVarInt() : 0);
+            response.setTs((mask & 1 << 6) != 0 ? readSignedVarInt() : 0);
+            response.setRid((mask & 1 << 7) != 0 ? readSignedVarInt() : 0);
+            response.setPort((mask & 1 << 8) != 0 ? readSignedVarInt() : 0);
+            if((mask & 1 << 9) != 0) response.setSession(readTyped(byte[].class, depth));
+        }
+
+        private <T> T readTyped(Class<T> type, int depth) throws IOException {
+            Object value = readValue(depth + 1);
+            if(value != null && !type.isInstance(value)) {
+                throw new StreamCorruptedException("Expected " + type.getSimpleName() + " but got " + value.getClass().getSimpleName());
+            }
+            return type.cast(value);
+        }
+
+        private PublicKey readPublicKey(String algorithm, byte[] encoded) throws IOException {
+            ByteBuffer cacheKey = ByteBuffer.wrap(encoded);
+            PublicKey key = keyCache.get(cacheKey);
+            // A cached key already used in this message would become a back reference when re-serialized
+            if(key == null || !algorithm.equals(key.getAlgorithm()) || keysInUse.containsKey(key)) {
+                key = parsePublicKey(algorithm, encoded);
+                if(keyCache.size() >= KEY_CACHE_SIZE) {
+                    keyCache.clear();
+                }
+                keyCache.putIfAbsent(cacheKey, key);
+            }
+            keysInUse.put(key, Boolean.TRUE);
+            return key;
+        }
+
+        private <T> T assign(T value) {
+            handles.add(value);
+            return value;
+        }
+
+        private int checkCount(int count) throws IOException {
+            // Every element takes at least one byte, anything bigger is a corrupt or hostile frame
+            if(count < 0 || count > in.length - position) {
+                throw new StreamCorruptedException("Invalid length " + count);
+            }
+            return count;
+        }
+
+        private int readByte() throws IOException {
+            if(position >= in.length) {
+                throw new StreamCorruptedException("Truncated frame");
+            }
+            return in[position++] & 0xFF;
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = checkCount(readVarInt());
+            byte[] bytes = new byte[length];
+            System.arraycopy(in, position, bytes, 0, length);
+            position += length;
+            return bytes;
+        }
+
+        private String readUtf() throws IOException {
+            int length = checkCount(readVarInt());
+            int end = position + length;
+            char[] chars = new char[length];
+            int count = 0;
+            while(position < end) {
+                int a = readByte();
+                if(a < 0x80) {
+                    chars[count++] = (char) a;
+                } else if((a & 0xE0) == 0xC0) {
+                    int b = readByte();
+                    chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+                } else if((a & 0xF0) == 0xE0) {
+                    int b = readByte();
+                    int c = readByte();
+                    chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+                } else {
+                    throw new StreamCorruptedException("Malformed string");
+                }
+            }
+            if(position != end) {
+                throw new StreamCorruptedException("Malformed string");
+            }
+            return new String(chars, 0, count);
+        }
+
+        private int readSignedVarInt() throws IOException {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private int readVarInt() throws IOException {
+            long value = readVarLong();
+            if(value > 0xFFFFFFFFL) {
+                throw new StreamCorruptedException("Varint overflow");
+            }
+            return (int) value;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Varint overflow");
+        }
+
+        private long readFixedLong() throws IOException {
+            long value = 0;
+            for(int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package library;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// The bytes a Request, Response or Quadruplet signature covers: [version][kind][every signed field in a fixed order]
+//
+// Unlike Java serialization it has no class metadata and does not depend on how the object graph was built:
+// JSON objects are written with their keys sorted and a nested envelope contributes its message and signature
+// but not its request id. Every value carries a tag and every variable length a prefix, so two different
+// messages never encode to the same bytes. The session id (see Session) and then a request's digest come last and
+// only when set, so messages without them keep the bytes they had before they existed.
+//
+// It is also how signed messages travel (FrameCodec.SIGNED_FORMAT): a Request or Response remembers the bytes
+// it was signed or received as, so they are neither encoded again to be sent nor to be verified.
+public final class CanonicalForm {
+
+    private static final int VERSION = 1;
+
+    // What is being signed, so a signature over one kind of message is never valid for another
+    private static final int REQUEST = 1;
+    private static final int RESPONSE = 2;
+    private static final int QUADRUPLET = 3;
+    private static final int PROPOSAL = 4;
+
+    // Value tags
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int DOUBLE = 4;
+    private static final int BOOLEAN = 5;
+    private static final int BYTES = 6;
+    private static final int INTS = 7;
+    private static final int JSON_OBJECT = 8;
+    private static final int JSON_ARRAY = 9;
+    private static final int PUBLIC_KEY = 10;
+    private static final int ENVELOPE = 11;
+    // Tag 12 was Java serialization of any other value. It is refused: the bytes are decoded before the signature
+    // over them is checked, and no payload holds such a value
+
+    private static final int MAX_DEPTH = 32;
+
+    private CanonicalForm() {}
+
+    // Encoded once per message: later calls return the same array until a setter changes the message
+    public static byte[] of(Object message) throws IOException {
+        if(message instanceof Request) {
+            Request request = (Request) message;
+            byte[] bytes = request.getSignedForm();
+            if(bytes == null) {
+                bytes = encode(message);
+                request.setSignedForm(bytes);
+            }
+            return bytes;
+        }
+        if(message instanceof Response) {
+            Response response = (Response) message;
+            byte[] bytes = response.getSignedForm();
+            if(bytes == null) {
+                bytes = encode(message);
+                response.setSignedForm(bytes);
+            }
+            return bytes;
+        }
+        return encode(message);
+    }
+
+    public static byte[] encode(Object message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        write(message, out);
+        return out.toByteArray();
+    }
+
+    public static void write(Object message, ByteArrayOutputStream out) throws IOException {
+        Writer writer = new Writer(out);
+        out.write(VERSION);
+        if(message instanceof Request) {
+            out.write(REQUEST);
+            writer.writeRequest((Request) message, true);
+        } else if(message instanceof Response) {
+            out.write(RESPONSE);
+            writer.writeResponse((Response) message);
+        } else if(message instanceof Quadruplet) {
+            Quadruplet<?, ?, ?, ?> quadruplet = (Quadruplet<?, ?, ?, ?>) message;
+            out.write(QUADRUPLET);
+            writer.writeValue(quadruplet.getFirst(), 0);
+            writer.writeValue(quadruplet.getSecond(), 0);
+            writer.writeValue(quadruplet.getThird(), 0);
+            writer.writeValue(quadruplet.getFourth(), 0);
+        } else {
+            throw new NotSerializableException(message == null ? "null" : message.getClass().getName());
+        }
+    }
+
+    // A client request as every replica gets it: the nonces and session id it carries for one replica are left out,
+    // so all of them encode the same request to the same bytes. Replicas agree on it by its digest (Signatures.digest)
+    public static byte[] proposal(Request request) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(VERSION);
+        out.write(PROPOSAL);
+        new Writer(out).writeRequest(request, false);
+        return out.toByteArray();
+    }
+
+    // A Request or Response holding a copy of bytes[offset, offset + length) as its signed form
+    public static Object decode(byte[] bytes, int offset, int length) throws IOException {
+        return decode(Arrays.copyOfRange(bytes, offset, offset + length), 0);
+    }
+
+    private static Object decode(byte[] bytes, int depth) throws IOException {
+        if(depth > MAX_DEPTH) {
+            throw new StreamCorruptedException("Object graph too deep");
+        }
+        Reader reader = new Reader(bytes, depth);
+        if(reader.readByte() != VERSION) {
+            throw new StreamCorruptedException("Unknown canonical form version");
+        }
+        int kind = reader.readByte();
+        Object message;
+        if(kind == REQUEST) {
+            message = reader.readRequest();
+        } else if(kind == RESPONSE) {
+            message = reader.readResponse();
+        } else {
+            throw new StreamCorruptedException("Not a request or response: " + kind);
+        }
+        if(reader.position != bytes.length) {
+            throw new StreamCorruptedException("Trailing bytes after message");
+        }
+        return message;
+    }
+
+
+//////////////////////////////////////////
+//
+//              Encoding
+//
+//////////////////////////////////////////
+
+    private static class Writer {
+
+        private final ByteArrayOutputStream out;
+
+        Writer(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void writeRequest(Request request, boolean perReplica) throws IOException {
+            writeValue(request.getOperation(), 0);
+            writeValue(request.getPublicKey(), 0);
+            writeValue(request.getPublicKeyToReadFrom(), 0);
+            writeValue(request.getUsername(), 0);
+            writeValue(request.getMessage(), 0);
+            writeValue(request.getAnnouncements(), 0);
+            writeInt(request.getNumber());
+            writeInt(request.getTs());
+            writeInt(request.getRid());
+            writeInt(request.getPort());
+            writeValue(perReplica ? request.getServerNonce() : null, 0);
+            writeValue(perReplica ? request.getClientNonce() : null, 0);
+            writeValue(request.getJsonObject(), 0);
+            writeValue(request.getSignature(), 0);
+            writeValue(request.getEnvelope(), 0);
+            byte[] session = perReplica ? request.getSession() : null;
+            if(session != null || request.getDigest() != null) {
+                writeValue(session, 0);
+            }
+            if(request.getDigest() != null) {
+                writeValue(request.getDigest(), 0);
+            }
+        }
+
+        void writeResponse(Response response) throws IOException {
+            out.write(response.getSuccess() ? 1 : 0);
+            writeInt(response.getErrorCode());
+            writeValue(response.getOperationType(), 0);
+            writeValue(response.getPublicKey(), 0);
+            writeValue(response.getNonce(), 0);
+            writeInt(response.getTs());
+            writeInt(response.getRid());
+            writeInt(response.getPort());
+            writeValue(response.getJsonObject(), 0);
+            if(response.getSession() != null) {
+                writeValue(response.getSession(), 0);
+            }
+        }
+
+        void writeValue(Object value, int depth) throws IOException {
+            if(depth > MAX_DEPTH) {
+                throw new NotSerializableException("Object graph too deep");
+            }
+            Class<?> type = value == null ? null : value.getClass();
+            if(value == null) {
+                out.write(NULL);
+            } else if(type == String.class) {
+                out.write(STRING);
+                writeUtf((String) value);
+            } else if(type == Integer.class) {
+                out.write(INTEGER);
+                writeInt((Integer) value);
+            } else if(type == Long.class) {
+                out.write(LONG);
+                writeLong((Long) value);
+            } else if(type == Double.class) {
+                out.write(DOUBLE);
+                writeLong(Double.doubleToLongBits((Double) value));
+            } else if(type == Boolean.class) {
+                out.write(BOOLEAN);
+                out.write((Boolean) value ? 1 : 0);
+            } else if(type == byte[].class) {
+                out.write(BYTES);
+                writeBytes((byte[]) value);
+            } else if(type == int[].class) {
+                int[] ints = (int[]) value;
+                out.write(INTS);
+                writeInt(ints.length);
+                for(int i : ints) {
+                    writeInt(i);
+                }
+            } else if(type == JSONObject.class) {
+                writeObject((JSONObject) value, depth);
+            } else if(type == JSONArray.class) {
+                List<?> list = (List<?>) value;
+                out.write(JSON_ARRAY);
+                writeInt(list.size());
+                for(Object element : list) {
+                    writeValue(element, depth + 1);
+                }
+            } else if(value instanceof PublicKey && "X.509".equals(((PublicKey) value).getFormat())) {
+                PublicKey key = (PublicKey) value;
+                out.write(PUBLIC_KEY);
+                writeUtf(key.getAlgorithm());
+                writeBytes(key.getEncoded());
+            } else if(type == Envelope.class) {
+                // The nested message as it was signed, so its bytes are reused rather than written again
+                Envelope envelope = (Envelope) value;
+                Object message = envelope.getRequest() != null ? envelope.getRequest() : envelope.getResponse();
+                out.write(ENVELOPE);
+                writeValue(message == null ? null : of(message), depth + 1);
+                writeValue(envelope.getSignature(), depth + 1);
+            } else {
+                throw new NotSerializableException(type.getName());
+            }
+        }
+
+        // Entries sorted by key, JSONObject is a HashMap and iterates in whatever order it was filled
+        private void writeObject(JSONObject object, int depth) throws IOException {
+            List<String> keys = new ArrayList<>(object.size());
+            for(Object key : object.keySet()) {
+                if(!(key instanceof String)) {
+                    throw new NotSerializableException("JSON key " + key);
+                }
+                keys.add((String) key);
+            }
+            Collections.sort(keys);
+            out.write(JSON_OBJECT);
+            writeInt(keys.size());
+            for(String key : keys) {
+                writeUtf(key);
+                writeValue(((Map<?, ?>) object).get(key), depth + 1);
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeInt(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        // Modified UTF-8 like DataOutputStream, so strings differing only in a lone surrogate stay distinct
+        private void writeUtf(String value) {
+            int length = 0;
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+            }
+            writeInt(length);
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if(c >= 0x0001 && c <= 0x007F) {
+                    out.write(c);
+                } else if(c > 0x07FF) {
+                    out.write(0xE0 | ((c >> 12) & 0x0F));
+                    out.write(0x80 | ((c >> 6) & 0x3F));
+                    out.write(0x80 | (c & 0x3F));
+                } else {
+                    out.write(0xC0 | ((c >> 6) & 0x1F));
+                    out.write(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void writeInt(int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        private void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+    }
+
+
+//////////////////////////////////////////
+//
+//              Decoding
+//
+//////////////////////////////////////////
+
+    private static class Reader {
+
+        private final byte[] in;
+        private final int depth;
+        private int position = 0;
+
+        Reader(byte[] in, int depth) {
+            this.in = in;
+            this.depth = depth;
+        }
+
+        Request readRequest() throws IOException {
+            Request request = new Request((String) null);
+            request.setOperation(readTyped(String.class, 0));
+            request.setPublicKey(readTyped(PublicKey.class, 0));
+            request.setPublicKeyToReadFrom(readTyped(PublicKey.class, 0));
+            request.setUsername(readTyped(String.class, 0));
+            request.setMessage(readTyped(String.class, 0));
+            request.setAnnouncements(readTyped(int[].class, 0));
+            request.setNumber(readInt());
+            request.setTs(readInt());
+            request.setRid(readInt());
+            request.setPort(readInt());
+            request.setServerNonce(readTyped(byte[].class, 0));
+            request.setClientNonce(readTyped(byte[].class, 0));
+            request.setJsonObject(readTyped(JSONObject.class, 0));
+            request.setSignature(readTyped(byte[].class, 0));
+            request.setEnvelope(readTyped(Envelope.class, 0));
+            if(position < in.length) {
+                request.setSession(readTyped(byte[].class, 0));
+            }
+            if(position < in.length) {
+                request.setDigest(readTyped(byte[].class, 0));
+            }
+            // Last, the setters above drop it
+            request.setSignedForm(in);
+            return request;
+        }
+
+        Response readResponse() throws IOException {
+            Response response = new Response(readByte() != 0);
+            response.setErrorCode(readInt());
+            response.setOperationType(readTyped(String.class, 0));
+            response.setServerKey(readTyped(PublicKey.class, 0));
+            response.setNonce(readTyped(byte[].class, 0));
+            response.setTs(readInt());
+            response.setRid(readInt());
+            response.setPort(readInt());
+            response.setJsonObject(readTyped(JSONObject.class, 0));
+            if(position < in.length) {
+                response.setSession(readTyped(byte[].class, 0));
+            }
+            response.setSignedForm(in);
+            return response;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readValue(int level) throws IOException {
+            if(level > MAX_DEPTH) {
+                throw new StreamCorruptedException("Object graph too deep");
+            }
+            int tag = readByte();
+            switch(tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readUtf();
+                case INTEGER:
+                    return readInt();
+                case LONG:
+                    return readLong();
+                case DOUBLE:
+                    return Double.longBitsToDouble(readLong());
+                case BOOLEAN:
+                    return readByte() != 0;
+                case BYTES:
+                    return readBytes();
+                case INTS: {
+                    int[] ints = new int[checkCount(readInt(), 4)];
+                    for(int i = 0; i < ints.length; i++) {
+                        ints[i] = readInt();
+                    }
+                    return ints;
+                }
+                case JSON_OBJECT: {
+                    JSONObject object = new JSONObject();
+                    int size = checkCount(readInt(), 5);
+                    for(int i = 0; i < size; i++) {
+                        String key = readUtf();
+                        object.put(key, readValue(level + 1));
+                    }
+                    return object;
+                }
+                case JSON_ARRAY: {
+                    JSONArray array = new JSONArray();
+                    int size = checkCount(readInt(), 1);
+                    for(int i = 0; i < size; i++) {
+                        array.add(readValue(level + 1));
+                    }
+                    return array;
+                }
+                case PUBLIC_KEY: {
+                    String algorithm = readUtf();
+                    return BinaryCodec.publicKey(algorithm, readBytes());
+                }
+                case ENVELOPE: {
+                    byte[] nested = readTyped(byte[].class, level);
+                    byte[] signature = readTyped(byte[].class, level);
+                    Object message = nested == null ? null : decode(nested, depth + 1);
+                    return message instanceof Response ? new Envelope((Response) message, signature) : new Envelope((Request) message, signature);
+                }
+                default:
+                    throw new StreamCorruptedException("Unknown tag " + tag);
+            }
+        }
+
+        private <T> T readTyped(Class<T> type, int level) throws IOException {
+            Object value = readValue(level + 1);
+            if(value != null && !type.isInstance(value)) {
+                throw new StreamCorruptedException("Expected " + type.getSimpleName() + " but got " + value.getClass().getSimpleName());
+            }
+            return type.cast(value);
+        }
+
+        // Every element takes at least minimum bytes, anything bigger is a corrupt or hostile message
+        private int checkCount(int count, int minimum) throws IOException {
+            if(count < 0 || count > (in.length - position) / minimum) {
+                throw new StreamCorruptedException("Invalid length " + count);
+            }
+            return count;
+        }
+
+        private int readByte() throws IOException {
+            if(position >= in.length) {
+                throw new StreamCorruptedException("Truncated message");
+            }
+            return in[position++] & 0xFF;
+        }
+
+        private int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private long readLong() throws IOException {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = checkCount(readInt(), 1);
+            byte[] bytes = Arrays.copyOfRange(in, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        private String readUtf() throws IOException {
+            int length = checkCount(readInt(), 1);
+            int end = position + length;
+            char[] chars = new char[length];
+            int count = 0;
+            while(position < end) {
+                int a = readByte();
+                if(a < 0x80) {
+                    chars[count++] = (char) a;
+                } else if((a & 0xE0) == 0xC0) {
+                    int b = readByte();
+                    chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+                } else if((a & 0xF0) == 0xE0) {
+                    int b = readByte();
+                    int c = readByte();
+                    chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+                } else {
+                    throw new StreamCorruptedException("Malformed string");
+                }
+            }
+            if(position != end) {
+                throw new StreamCorruptedException("Malformed string");
+            }
+            return new String(chars, 0, count);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package library;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// One end of a framed link, either a blocking socket or a channel owned by a FrameServer
+public interface Connection extends Closeable {
+
+    void send(Envelope envelope) throws IOException;
+
+    boolean isOpen();
+
+}
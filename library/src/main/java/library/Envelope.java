@@ -4,9 +4,13 @@ import java.io.Serializable;
 
 public class Envelope implements Serializable {
 
+    private static final long serialVersionUID = -5073714060593389509L;
+
     private Request request = null;
     private Response response = null;
     private byte[] signature = null;
+    // Lets a pipelined client match out of order replies, 0 when the link carries one request at a time
+    private long requestId = 0;
 
     public Envelope(Request request, byte[] signature){
         this.request = request;
@@ -56,5 +60,20 @@ public class Envelope implements Serializable {
     public void setSignature(byte[] signature) {
         this.signature = signature;
     }
-    
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    // Same content under another request id, the original is left untouched
+    public Envelope withRequestId(long requestId) {
+        Envelope copy = request != null ? new Envelope(request, signature) : new Envelope(response, signature);
+        copy.requestId = requestId;
+        return copy;
+    }
+
 }
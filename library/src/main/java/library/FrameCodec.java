@@ -0,0 +1,177 @@
+package library;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// Every Envelope on the wire travels inside a frame: [4 byte length][payload]
+// The first payload byte tells the format, so nodes read both and answer in the one they were asked in
+public class FrameCodec {
+
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    public static final byte JAVA_FORMAT = (byte) 0xAC;  // first byte of every Java serialization stream
+    public static final byte BINARY_FORMAT = BinaryCodec.VERSION;
+    // [format][8 byte request id][4 byte length][canonical form of the message][4 byte length, -1 for none][signature]
+    public static final byte SIGNED_FORMAT = 0x02;
+
+    // "java" keeps talking to replicas that predate the binary codec, "binary" to those that predate the signed format
+    private static final byte DEFAULT_FORMAT = defaultFormat(System.getProperty("dpas.wire.format"));
+
+    private FrameCodec() {}
+
+    public static byte defaultFormat() {
+        return DEFAULT_FORMAT;
+    }
+
+    public static byte formatOf(byte[] payload) {
+        if(payload.length > 0 && (payload[0] == BINARY_FORMAT || payload[0] == SIGNED_FORMAT)) {
+            return payload[0];
+        }
+        return JAVA_FORMAT;
+    }
+
+    public static byte[] encode(Envelope envelope) throws IOException {
+        return encode(envelope, DEFAULT_FORMAT);
+    }
+
+    public static byte[] encode(Envelope envelope, byte format) throws IOException {
+        if(format == SIGNED_FORMAT && Signatures.usesCanonicalForm()) {
+            try {
+                return encodeSigned(envelope);
+            } catch (NotSerializableException e) {
+                // Falls back to the binary codec below
+            }
+            format = BINARY_FORMAT;
+        }
+        if(format == BINARY_FORMAT) {
+            try {
+                return BinaryCodec.encode(envelope);
+            } catch (NotSerializableException e) {
+                // Something the binary codec has no layout for, Java serialization still carries it
+            }
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(envelope);
+        }
+        return bos.toByteArray();
+    }
+
+    public static Envelope decode(byte[] payload) throws IOException, ClassNotFoundException {
+        byte format = formatOf(payload);
+        if(format == SIGNED_FORMAT) {
+            return decodeSigned(payload);
+        }
+        if(format == BINARY_FORMAT) {
+            return BinaryCodec.decode(payload);
+        }
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (Envelope) in.readObject();
+        }
+    }
+
+    // The message goes out as the very bytes it was signed over, and the receiver keeps them to verify the signature
+    private static byte[] encodeSigned(Envelope envelope) throws IOException {
+        Object message = envelope.getRequest() != null ? envelope.getRequest() : envelope.getResponse();
+        if(message == null || (envelope.getRequest() != null && envelope.getResponse() != null)) {
+            throw new NotSerializableException("Envelope without a single message");
+        }
+        byte[] signed = CanonicalForm.of(message);
+        byte[] signature = envelope.getSignature();
+        int signatureLength = signature == null ? 0 : signature.length;
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 4 + signed.length + 4 + signatureLength);
+        payload.put(SIGNED_FORMAT);
+        payload.putLong(envelope.getRequestId());
+        payload.putInt(signed.length);
+        payload.put(signed);
+        payload.putInt(signature == null ? -1 : signature.length);
+        if(signature != null) {
+            payload.put(signature);
+        }
+        return payload.array();
+    }
+
+    private static Envelope decodeSigned(byte[] payload) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload, 1, payload.length - 1);
+            long requestId = in.getLong();
+            int length = in.getInt();
+            if(length < 0 || length > in.remaining()) {
+                throw new StreamCorruptedException("Invalid message length: " + length);
+            }
+            Object message = CanonicalForm.decode(payload, in.position(), length);
+            in.position(in.position() + length);
+            int signatureLength = in.getInt();
+            // Checked before allocating, the length comes from a peer that has not been authenticated yet
+            if(signatureLength < -1 || signatureLength > in.remaining()) {
+                throw new StreamCorruptedException("Invalid signature length: " + signatureLength);
+            }
+            byte[] signature = null;
+            if(signatureLength >= 0) {
+                signature = new byte[signatureLength];
+                in.get(signature);
+            }
+            if(in.hasRemaining()) {
+                throw new StreamCorruptedException("Trailing bytes after signature");
+            }
+            Envelope envelope = message instanceof Request ? new Envelope((Request) message, signature) : new Envelope((Response) message, signature);
+            envelope.setRequestId(requestId);
+            return envelope;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new StreamCorruptedException("Truncated signed frame");
+        }
+    }
+
+    private static byte defaultFormat(String name) {
+        if("java".equalsIgnoreCase(name)) {
+            return JAVA_FORMAT;
+        }
+        return "binary".equalsIgnoreCase(name) ? BINARY_FORMAT : SIGNED_FORMAT;
+    }
+
+    // Payload prefixed with its length, ready to be written as a single chunk
+    public static byte[] frame(byte[] payload) {
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        writeLength(frame, payload.length);
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    public static void write(OutputStream out, Envelope envelope) throws IOException {
+        out.write(frame(encode(envelope)));
+        out.flush();
+    }
+
+    public static Envelope read(InputStream in) throws IOException, ClassNotFoundException {
+        DataInputStream dataIn = new DataInputStream(in);
+        int length = checkLength(dataIn.readInt());
+        byte[] payload = new byte[length];
+        dataIn.readFully(payload);
+        return decode(payload);
+    }
+
+    static int checkLength(int length) throws IOException {
+        if(length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    private static void writeLength(byte[] frame, int length) {
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+    }
+}
@@ -0,0 +1,8 @@
+package library;
+
+// Called by a FrameServer event loop for every complete frame it reads
+public interface FrameHandler {
+
+    void onFrame(Connection connection, byte[] frame);
+
+}
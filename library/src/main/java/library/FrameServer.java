@@ -0,0 +1,330 @@
+package library;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking listener: a few selector threads read and write framed envelopes for every connection
+public class FrameServer {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // Bytes of replies a connection may have waiting to be written before it is dropped (-Ddpas.wire.backlog),
+    // so a peer that never reads cannot make the server buffer for it forever
+    private static final long WRITE_BACKLOG = Long.getLong("dpas.wire.backlog", FrameCodec.MAX_FRAME_SIZE);
+
+    private final ServerSocketChannel serverChannel;
+    private final FrameHandler handler;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public FrameServer(int port, int nLoops, FrameHandler handler, String name, boolean daemon) throws IOException {
+        this(openChannel(port), nLoops, handler, name, daemon);
+    }
+
+    public FrameServer(ServerSocketChannel serverChannel, int nLoops, FrameHandler handler, String name) throws IOException {
+        this(serverChannel, nLoops, handler, name, false);
+    }
+
+    // Daemon loops do not keep the JVM alive (used by short lived client listeners)
+    public FrameServer(ServerSocketChannel serverChannel, int nLoops, FrameHandler handler, String name, boolean daemon) throws IOException {
+        this.serverChannel = serverChannel;
+        this.handler = handler;
+        this.serverChannel.configureBlocking(false);
+
+        loops = new EventLoop[Math.max(1, nLoops)];
+        for(int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for(int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], name + "-loop-" + i);
+            thread.setDaemon(daemon);
+            loops[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    public static ServerSocketChannel openChannel(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void close() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for(EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        // The port is only released once the selector drops the channel, so wait for the loops to finish
+        for(EventLoop loop : loops) {
+            if(!loop.inLoop()) {
+                try {
+                    loop.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+
+//////////////////////////////////////////
+//
+//             Event loop
+//
+//////////////////////////////////////////
+
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while(running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if(!key.isValid()) {
+                            continue;
+                        }
+                        if(key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if(key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    if(running) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            for(SelectionKey key : selector.keys()) {
+                if(key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).closeNow();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this, channel, key));
+            } catch (ClosedChannelException e) {
+                // peer went away before we got to it
+            }
+        }
+    }
+
+
+//////////////////////////////////////////
+//
+//          Connection state
+//
+//////////////////////////////////////////
+
+    private class NioConnection implements Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pending = new AtomicLong();
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Replies go out in the format the peer last wrote in
+        private volatile byte format = FrameCodec.defaultFormat();
+        private volatile boolean closing = false;
+        private volatile boolean closed = false;
+
+        NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable() {
+            try {
+                int read = channel.read(in);
+                if(read < 0) {
+                    closeNow();
+                    return;
+                }
+                in.flip();
+                while(in.remaining() >= FrameCodec.HEADER_SIZE) {
+                    int length = FrameCodec.checkLength(in.getInt(in.position()));
+                    if(in.remaining() < FrameCodec.HEADER_SIZE + length) {
+                        break;
+                    }
+                    in.position(in.position() + FrameCodec.HEADER_SIZE);
+                    byte[] frame = new byte[length];
+                    in.get(frame);
+                    format = FrameCodec.formatOf(frame);
+                    handler.onFrame(this, frame);
+                }
+                in.compact();
+                ensureCapacity();
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        // The read buffer only grows once it is full, doubling up to the frame being read, so memory follows the
+        // bytes that actually arrived and not the length a header claims. It shrinks back between frames
+        private void ensureCapacity() throws IOException {
+            if(in.position() < FrameCodec.HEADER_SIZE) {
+                if(in.capacity() > READ_BUFFER_SIZE) {
+                    in.flip();
+                    in = ByteBuffer.allocate(READ_BUFFER_SIZE).put(in);
+                }
+                return;
+            }
+            int needed = FrameCodec.checkLength(in.getInt(0)) + FrameCodec.HEADER_SIZE;
+            if(!in.hasRemaining() && needed > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(needed, 2L * in.capacity()));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        @Override
+        public void send(Envelope envelope) throws IOException {
+            if(closed || closing) {
+                throw new ClosedChannelException();
+            }
+            ByteBuffer frame = ByteBuffer.wrap(FrameCodec.frame(FrameCodec.encode(envelope, format)));
+            // One reply always fits, however big, so the limit only bites on a peer that stopped reading
+            if(pending.addAndGet(frame.remaining()) > WRITE_BACKLOG && pending.get() > frame.remaining()) {
+                loop.execute(this::closeNow);
+                throw new IOException("Peer is not reading, " + pending.get() + " bytes waiting");
+            }
+            writes.add(frame);
+            if(loop.inLoop()) {
+                flush();
+            } else {
+                loop.execute(this::flush);
+            }
+        }
+
+        void flush() {
+            try {
+                ByteBuffer buffer;
+                while((buffer = writes.peek()) != null) {
+                    channel.write(buffer);
+                    if(buffer.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pending.addAndGet(-buffer.capacity());
+                    writes.poll();
+                }
+                if(key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if(closing) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && !closing;
+        }
+
+        // Pending responses are still written before the channel is closed
+        @Override
+        public void close() {
+            if(closing || closed) {
+                return;
+            }
+            closing = true;
+            if(loop.inLoop()) {
+                flush();
+            } else {
+                loop.execute(this::flush);
+            }
+        }
+
+        void closeNow() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package library;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+// Remembers which numbers a sender already used when it numbers its messages 1, 2, 3... instead of asking for a nonce.
+// A number is accepted the first time it is offered. Numbers may arrive somewhat out of order, but not more than
+// WINDOW behind the highest one
+public final class ReplayWindow implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    public static final int WINDOW = 64;
+
+    // Highest number accepted so far and which of the WINDOW numbers below it were seen (bit i is highest - i)
+    private long highest = 0;
+    private long seen = 0;
+
+    public synchronized boolean accept(long sequence) {
+        if(sequence <= 0) {
+            return false;
+        }
+        if(sequence > highest) {
+            long shift = sequence - highest;
+            seen = shift >= WINDOW ? 1 : (seen << shift) | 1;
+            highest = sequence;
+            return true;
+        }
+        long offset = highest - sequence;
+        if(offset >= WINDOW || (seen & (1L << offset)) != 0) {
+            return false;
+        }
+        seen |= 1L << offset;
+        return true;
+    }
+
+    public synchronized long getHighest() {
+        return highest;
+    }
+
+    // Replicas save the windows while requests keep moving them
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+}
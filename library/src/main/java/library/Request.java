@@ -6,6 +6,9 @@ import java.io.Serializable;
 import java.security.PublicKey;
 
 public class Request implements Serializable {
+
+    // Pinned to what the class had before signedForm, so nodes on dpas.wire.format=java still read each other
+    private static final long serialVersionUID = 5208895006846422977L;
 	
     private String operation;
     private byte[] serverNonce = null;   //server generated the nonce
@@ -22,6 +25,12 @@ public class Request implements Serializable {
     private byte[] signature = null;
     private Envelope envelope;
     private int port;
+    // Session id of a MAC'd request, or the sealed session key of a SESSION request (see Session)
+    private byte[] session = null;
+    // ECHO/READY: digest of the client request they vouch for (Signatures.digest), the client is publicKeyToReadFrom
+    private byte[] digest = null;
+    // The canonical bytes this message was signed or received as, dropped by every setter
+    private transient byte[] signedForm = null;
     
     ////////////////////////////////////////////////////////////////
     //				                                         	  //
@@ -142,12 +151,23 @@ public class Request implements Serializable {
         this.port = port;
     }
 
+    //READY/ECHO by digest
+    public Request(String operation, PublicKey client, byte[] digest, PublicKey key, byte[] nonce, int port){
+        this.operation = operation;
+        this.publicKeyToReadFrom = client;
+        this.digest = digest;
+        this.publicKey = key;
+        this.serverNonce = nonce;
+        this.port = port;
+    }
+
     public Envelope getEnvelope() {
         return envelope;
     }
 
     public void setEnvelope(Envelope envelope) {
         this.envelope = envelope;
+        this.signedForm = null;
     }
 
     public int getPort() {
@@ -156,6 +176,7 @@ public class Request implements Serializable {
 
     public void setPort(int port) {
         this.port = port;
+        this.signedForm = null;
     }
 
     public byte[] getSignature() {
@@ -164,6 +185,25 @@ public class Request implements Serializable {
 
     public void setSignature(byte[] signature) {
         this.signature = signature;
+        this.signedForm = null;
+    }
+
+    public byte[] getSession() {
+        return session;
+    }
+
+    public void setSession(byte[] session) {
+        this.session = session;
+        this.signedForm = null;
+    }
+
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    public void setDigest(byte[] digest) {
+        this.digest = digest;
+        this.signedForm = null;
     }
 
     public JSONObject getJsonObject() {
@@ -172,6 +212,7 @@ public class Request implements Serializable {
 
     public void setJsonObject(JSONObject jsonObject) {
         this.jsonObject = jsonObject;
+        this.signedForm = null;
     }
 
     public String getUsername() {
@@ -180,6 +221,7 @@ public class Request implements Serializable {
 
     public void setUsername(String username) {
         this.username = username;
+        this.signedForm = null;
     }
 
     public int getRid() {
@@ -188,6 +230,7 @@ public class Request implements Serializable {
 
     public void setRid(int rid) {
         this.rid = rid;
+        this.signedForm = null;
     }
 
     public int getTs() {
@@ -196,6 +239,7 @@ public class Request implements Serializable {
 
     public void setTs(int ts) {
         this.ts = ts;
+        this.signedForm = null;
     }
 
     public String getOperation() {
@@ -204,6 +248,7 @@ public class Request implements Serializable {
 
     public void setOperation(String operation) {
         this.operation = operation;
+        this.signedForm = null;
     }
 
     public PublicKey getPublicKey() {
@@ -212,6 +257,7 @@ public class Request implements Serializable {
 
     public void setPublicKey(PublicKey publicKey) {
         this.publicKey = publicKey;
+        this.signedForm = null;
     }
 
     public String getMessage() {
@@ -220,6 +266,7 @@ public class Request implements Serializable {
 
     public void setMessage(String message) {
         this.message = message;
+        this.signedForm = null;
     }
 
     public int getNumber() {
@@ -228,6 +275,7 @@ public class Request implements Serializable {
 
     public void setNumber(int number) {
         this.number = number;
+        this.signedForm = null;
     }
 
     public int[] getAnnouncements() {
@@ -236,6 +284,7 @@ public class Request implements Serializable {
 
     public void setAnnouncements(int[] announcements) {
         this.announcements = announcements;
+        this.signedForm = null;
     }
 
     public byte[] getServerNonce() {
@@ -244,6 +293,7 @@ public class Request implements Serializable {
 
     public void setServerNonce(byte[] nonceServer) {
         this.serverNonce = nonceServer;
+        this.signedForm = null;
     }
 
     public byte[] getClientNonce() {
@@ -252,6 +302,7 @@ public class Request implements Serializable {
 
     public void setClientNonce(byte[] clientNonce) {
         this.clientNonce = clientNonce;
+        this.signedForm = null;
     }
 
 	public PublicKey getPublicKeyToReadFrom() {
@@ -260,9 +311,18 @@ public class Request implements Serializable {
 
 	public void setPublicKeyToReadFrom(PublicKey publicKeyToReadFrom) {
 		this.publicKeyToReadFrom = publicKeyToReadFrom;
+		this.signedForm = null;
 	}
 	
 
+    byte[] getSignedForm() {
+        return signedForm;
+    }
+
+    void setSignedForm(byte[] signedForm) {
+        this.signedForm = signedForm;
+    }
+
     @Override
     public String toString() {
         String s ="";
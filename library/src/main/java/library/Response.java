@@ -7,6 +7,9 @@ import java.security.PublicKey;
 
 public class Response implements Serializable {
 
+    // Pinned to what the class had before signedForm, so nodes on dpas.wire.format=java still read each other
+    private static final long serialVersionUID = 6895242314255095129L;
+
     private boolean success;
     private JSONObject jsonObject;
     private byte[] nonce = null;
@@ -17,6 +20,10 @@ public class Response implements Serializable {
     private int port = 0;
     private PublicKey publicKey;
     private String operationType = null;
+    // Session id of a MAC'd response (see Session)
+    private byte[] session = null;
+    // The canonical bytes this message was signed or received as, dropped by every setter
+    private transient byte[] signedForm = null;
 
     public Response(byte[] nonce) {
         this.nonce = nonce;
@@ -93,6 +100,7 @@ public class Response implements Serializable {
     
     public void setServerKey(PublicKey publicKey) {
     	this.publicKey = publicKey;
+    	this.signedForm = null;
     }
 
     public int getPort() {
@@ -101,6 +109,7 @@ public class Response implements Serializable {
 
     public void setPort(int port) {
         this.port = port;
+        this.signedForm = null;
     }
 
     public int getRid() {
@@ -109,6 +118,7 @@ public class Response implements Serializable {
 
     public void setRid(int rid) {
         this.rid = rid;
+        this.signedForm = null;
     }
 
     public int getTs() {
@@ -117,6 +127,7 @@ public class Response implements Serializable {
 
     public void setTs(int ts) {
         this.ts = ts;
+        this.signedForm = null;
     }
 
     public JSONObject getJsonObject() {
@@ -125,6 +136,7 @@ public class Response implements Serializable {
 
     public void setJsonObject(JSONObject jsonObject) {
         this.jsonObject = jsonObject;
+        this.signedForm = null;
     }
 
     public Response(boolean success){
@@ -137,6 +149,7 @@ public class Response implements Serializable {
 
     public void setSuccess(boolean success) {
         this.success = success;
+        this.signedForm = null;
     }
 
     public int getErrorCode() {
@@ -145,6 +158,7 @@ public class Response implements Serializable {
 
     public void setErrorCode(int errorCode) {
         this.errorCode = errorCode;
+        this.signedForm = null;
     }
 
     public byte[] getNonce() {
@@ -153,6 +167,7 @@ public class Response implements Serializable {
 
     public void setNonce(byte[] nonce) {
         this.nonce = nonce;
+        this.signedForm = null;
     }
 
     public String getOperationType() {
@@ -161,6 +176,24 @@ public class Response implements Serializable {
 
     public void setOperationType(String type) {
         this.operationType = type;
+        this.signedForm = null;
+    }
+
+    public byte[] getSession() {
+        return session;
+    }
+
+    public void setSession(byte[] session) {
+        this.session = session;
+        this.signedForm = null;
+    }
+
+    byte[] getSignedForm() {
+        return signedForm;
+    }
+
+    void setSignedForm(byte[] signedForm) {
+        this.signedForm = signedForm;
     }
 
     @Override
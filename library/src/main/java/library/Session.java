@@ -0,0 +1,103 @@
+package library;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+// A key one client shares with one replica. The client draws it, seals it with the replica's RSA key and sends it
+// in a signed SESSION request. From then on both sides MAC the requests and responses between them with it
+// (Signatures.mac) instead of signing them, and name the session by an id derived from the key.
+// Requests to a replica with another kind of key (EC, Ed25519) stay signed, see canSeal
+public final class Session {
+
+    public static final String MAC = "HmacSHA256";
+    // Only the replica the key was sealed for can open it
+    private static final String SEAL = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final int KEY_BYTES = 32;
+    private static final int ID_BYTES = 16;
+    private static final byte[] ID_LABEL = "DPAS session id".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final byte[] id;
+    // Who opened the session (a user, or the replica at the other end of a peer link), only known to the replica
+    private final PublicKey clientKey;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private final ReplayWindow window = new ReplayWindow();
+
+    private Session(byte[] secret, PublicKey clientKey) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(ID_LABEL);
+        this.id = Arrays.copyOf(digest.digest(secret), ID_BYTES);
+        this.key = new SecretKeySpec(secret, MAC);
+        this.clientKey = clientKey;
+    }
+
+    // A fresh key, on the client
+    public static Session generate() throws NoSuchAlgorithmException {
+        byte[] secret = new byte[KEY_BYTES];
+        RANDOM.nextBytes(secret);
+        return new Session(secret, null);
+    }
+
+    // The key sealed in a SESSION request, on the replica. clientKey is the key that request was signed with
+    public static Session open(PrivateKey replicaKey, byte[] sealed, PublicKey clientKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(SEAL);
+        cipher.init(Cipher.DECRYPT_MODE, replicaKey);
+        byte[] secret = cipher.doFinal(sealed);
+        if(secret.length != KEY_BYTES) {
+            throw new InvalidKeyException("Session keys have " + KEY_BYTES + " bytes");
+        }
+        return new Session(secret, clientKey);
+    }
+
+    // Whether a key can be sealed for this replica key. Only RSA keys can encrypt
+    public static boolean canSeal(PublicKey replicaKey) {
+        return replicaKey != null && "RSA".equals(replicaKey.getAlgorithm());
+    }
+
+    public byte[] seal(PublicKey replicaKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(SEAL);
+        cipher.init(Cipher.ENCRYPT_MODE, replicaKey);
+        return cipher.doFinal(key.getEncoded());
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    public byte[] getId() {
+        return id.clone();
+    }
+
+    public boolean hasId(byte[] other) {
+        return MessageDigest.isEqual(id, other);
+    }
+
+    public PublicKey getClientKey() {
+        return clientKey;
+    }
+
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    public boolean isIdle(long millis) {
+        return System.currentTimeMillis() - lastUsed > millis;
+    }
+
+    // For messages numbered 1, 2, 3... by their sender, see ReplayWindow
+    public boolean acceptSequence(long sequence) {
+        return window.accept(sequence);
+    }
+}
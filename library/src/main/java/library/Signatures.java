@@ -0,0 +1,234 @@
+package library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+// Signatures over the canonical form of a message (see CanonicalForm), as both CryptoManagers sign and verify.
+// Requests and responses are signed over the bytes they keep, the same ones FrameCodec sends. The scheme follows
+// the key: SHA256withRSA for RSA keys, SHA256withECDSA for EC keys and EdDSA for Ed25519/Ed448 keys (JDK 15+).
+// Messages between a client and a replica that share a Session are MAC'd over the same bytes instead.
+// Replicas agree on client requests by a SHA-256 digest of their CanonicalForm.proposal.
+// Each thread keeps a signer and a verifier per scheme and a MAC that stay initialized with the last key they used,
+// a digest, and a buffer for everything else
+public final class Signatures {
+
+    // Buffers grown past this by a large message are dropped instead of kept for the thread's lifetime
+    private static final int MAX_KEPT_BUFFER = 1 << 20;
+    // "java" signs the Java serialization of the message, as replicas and clients that predate CanonicalForm do
+    private static final boolean JAVA_FORM = "java".equalsIgnoreCase(System.getProperty("dpas.sign.format"));
+
+    // Key algorithm (Key.getAlgorithm()) to signature algorithm
+    private static final Map<String, String> SCHEMES = new ConcurrentHashMap<>();
+
+    static {
+        SCHEMES.put("RSA", "SHA256withRSA");
+        SCHEMES.put("EC", "SHA256withECDSA");
+        SCHEMES.put("EdDSA", "EdDSA");
+        SCHEMES.put("Ed25519", "Ed25519");
+        SCHEMES.put("Ed448", "Ed448");
+    }
+
+    public static final String DIGEST = "SHA-256";
+    public static final int DIGEST_BYTES = 32;
+
+    private static final ThreadLocal<Engines> ENGINES = ThreadLocal.withInitial(Engines::new);
+
+    private Signatures() {}
+
+    // False with dpas.sign.format=java, signatures then no longer cover the bytes FrameCodec.SIGNED_FORMAT sends
+    public static boolean usesCanonicalForm() {
+        return !JAVA_FORM;
+    }
+
+    // Adds a scheme for keys of another algorithm, or replaces one above. Every node must agree on it
+    public static void register(String keyAlgorithm, String signatureAlgorithm) {
+        SCHEMES.put(keyAlgorithm, signatureAlgorithm);
+    }
+
+    // Picked from the key, never from the message, so a signature is only checked the way its signer's key allows
+    public static String algorithmFor(Key key) throws InvalidKeyException {
+        String algorithm = key == null ? null : SCHEMES.get(key.getAlgorithm());
+        if(algorithm == null) {
+            throw new InvalidKeyException(key == null ? "Missing key" : "No signature scheme for " + key.getAlgorithm() + " keys");
+        }
+        return algorithm;
+    }
+
+    public static byte[] sign(PrivateKey key, Object message) throws InvalidKeyException, NoSuchAlgorithmException, SignatureException, IOException {
+        Engines engines = ENGINES.get();
+        Engine signer = engines.signer(key);
+        try {
+            engines.update(signer.signature, message);
+            return signer.signature.sign();
+        } catch (SignatureException | RuntimeException e) {
+            signer.key = null;
+            throw e;
+        }
+    }
+
+    public static boolean verify(PublicKey key, Object message, byte[] signature) throws InvalidKeyException, NoSuchAlgorithmException, SignatureException, IOException {
+        Engines engines = ENGINES.get();
+        Engine verifier = engines.verifier(key);
+        try {
+            engines.update(verifier.signature, message);
+            return verifier.signature.verify(signature);
+        } catch (SignatureException | RuntimeException e) {
+            verifier.key = null;
+            throw e;
+        }
+    }
+
+    // HMAC-SHA256 under a Session key
+    public static byte[] mac(SecretKey key, Object message) throws InvalidKeyException, NoSuchAlgorithmException, IOException {
+        Engines engines = ENGINES.get();
+        Mac mac = engines.mac(key);
+        try {
+            engines.update(mac, message);
+            return mac.doFinal();
+        } catch (IOException | RuntimeException e) {
+            engines.macKey = null;
+            throw e;
+        }
+    }
+
+    // Constant time, a tag of the wrong length is simply not valid
+    public static boolean verifyMac(SecretKey key, Object message, byte[] tag) throws InvalidKeyException, NoSuchAlgorithmException, IOException {
+        return tag != null && MessageDigest.isEqual(mac(key, message), tag);
+    }
+
+    // SHA-256 of a client request's CanonicalForm.proposal, the same on every replica that got the request
+    public static byte[] digest(Request request) throws NoSuchAlgorithmException, IOException {
+        return ENGINES.get().digest().digest(CanonicalForm.proposal(request));
+    }
+
+    // A Signature and the key it was last initialized with, null when its state is unknown
+    private static final class Engine {
+
+        private final Signature signature;
+        private Key key;
+
+        Engine(String algorithm) throws NoSuchAlgorithmException {
+            this.signature = Signature.getInstance(algorithm);
+        }
+    }
+
+    private static final class Engines {
+
+        private final Map<String, Engine> signers = new HashMap<>();
+        private final Map<String, Engine> verifiers = new HashMap<>();
+        private Mac mac;
+        private Key macKey;
+        private MessageDigest digest;
+        private Buffer buffer = new Buffer();
+
+        // sign() and verify() leave an engine initialized with the same key, so it is only set up again for another key
+        Engine signer(PrivateKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+            Engine signer = engine(signers, algorithmFor(key));
+            if(key != signer.key) {
+                signer.key = null;
+                signer.signature.initSign(key);
+                signer.key = key;
+            }
+            return signer;
+        }
+
+        Engine verifier(PublicKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+            Engine verifier = engine(verifiers, algorithmFor(key));
+            if(key != verifier.key) {
+                verifier.key = null;
+                verifier.signature.initVerify(key);
+                verifier.key = key;
+            }
+            return verifier;
+        }
+
+        Mac mac(SecretKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+            if(mac == null) {
+                mac = Mac.getInstance(Session.MAC);
+            }
+            if(key != macKey) {
+                macKey = null;
+                mac.init(key);
+                macKey = key;
+            }
+            return mac;
+        }
+
+        // digest() always leaves it reset
+        MessageDigest digest() throws NoSuchAlgorithmException {
+            if(digest == null) {
+                digest = MessageDigest.getInstance(DIGEST);
+            }
+            return digest;
+        }
+
+        private static Engine engine(Map<String, Engine> engines, String algorithm) throws NoSuchAlgorithmException {
+            Engine engine = engines.get(algorithm);
+            if(engine == null) {
+                engine = new Engine(algorithm);
+                engines.put(algorithm, engine);
+            }
+            return engine;
+        }
+
+        void update(Signature engine, Object message) throws IOException, SignatureException {
+            if(!JAVA_FORM && (message instanceof Request || message instanceof Response)) {
+                engine.update(CanonicalForm.of(message));
+                return;
+            }
+            Buffer bytes = serialize(message);
+            engine.update(bytes.array(), 0, bytes.size());
+        }
+
+        void update(Mac engine, Object message) throws IOException {
+            if(!JAVA_FORM && (message instanceof Request || message instanceof Response)) {
+                engine.update(CanonicalForm.of(message));
+                return;
+            }
+            Buffer bytes = serialize(message);
+            engine.update(bytes.array(), 0, bytes.size());
+        }
+
+        private Buffer serialize(Object message) throws IOException {
+            if(buffer.array().length > MAX_KEPT_BUFFER) {
+                buffer = new Buffer();
+            }
+            buffer.reset();
+            if(JAVA_FORM) {
+                try(ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+                    out.writeObject(message);
+                }
+            } else {
+                CanonicalForm.write(message, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    // Hands its array to the engine instead of copying it out with toByteArray()
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(2048);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+// Blocking framed connection, used on the side that opens the link
+public class SocketConnection implements Connection {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    public SocketConnection(String host, int port) throws IOException {
+        this(new Socket(host, port));
+    }
+
+    public SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = socket.getOutputStream();
+    }
+
+    public void setTimeout(int milliseconds) throws SocketException {
+        socket.setSoTimeout(milliseconds);
+    }
+
+    public void setKeepAlive(boolean keepAlive) throws SocketException {
+        socket.setKeepAlive(keepAlive);
+    }
+
+    // Bytes nobody asked for (e.g. a late reply) mean the link can't be reused
+    public boolean hasPendingInput() throws IOException {
+        return in.available() > 0;
+    }
+
+    @Override
+    public synchronized void send(Envelope envelope) throws IOException {
+        FrameCodec.write(out, envelope);
+    }
+
+    public Envelope receive() throws IOException, ClassNotFoundException {
+        return FrameCodec.read(in);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,30 @@
+package library;
+
+import java.io.IOException;
+
+// Stamps every reply with the id of the request it answers, so pipelined clients can match them
+public class TaggedConnection implements Connection {
+
+    private final Connection connection;
+    private final long requestId;
+
+    public TaggedConnection(Connection connection, long requestId) {
+        this.connection = connection;
+        this.requestId = requestId;
+    }
+
+    @Override
+    public void send(Envelope envelope) throws IOException {
+        connection.send(envelope.getRequestId() == requestId ? envelope : envelope.withRequestId(requestId));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connection.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+}
@@ -0,0 +1,77 @@
+package library;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+// Threads for short blocking tasks (replica fan-out, broadcasts, request handlers).
+// With -Ddpas.virtual.threads=true they are virtual threads on JDK 21+, platform threads otherwise.
+public final class Tasks {
+
+    private static final boolean VIRTUAL_REQUESTED = Boolean.getBoolean("dpas.virtual.threads");
+    private static final ThreadFactory VIRTUAL_FACTORY = VIRTUAL_REQUESTED ? virtualFactory() : null;
+
+    private Tasks() {}
+
+    public static boolean isVirtual() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    public static Thread newThread(Runnable task) {
+        return VIRTUAL_FACTORY != null ? VIRTUAL_FACTORY.newThread(task) : new Thread(task);
+    }
+
+    public static Thread start(Runnable task) {
+        Thread thread = newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    // Named threads for executors, e.g. the server worker pool
+    public static ThreadFactory factory(String prefix) {
+        return named(prefix, true);
+    }
+
+    // Named platform threads whatever dpas.virtual.threads says, for executors whose tasks never block
+    public static ThreadFactory platformFactory(String prefix) {
+        return named(prefix, false);
+    }
+
+    private static ThreadFactory named(String prefix, boolean virtual) {
+        return new ThreadFactory() {
+            private int counter = 0;
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = virtual ? Tasks.newThread(runnable) : new Thread(runnable);
+                thread.setName(prefix + "-" + (++counter));
+                return thread;
+            }
+        };
+    }
+
+    // Waits for every started thread, unused slots may be null
+    public static void joinAll(Thread[] threads) {
+        for(Thread thread : threads) {
+            if(thread == null) {
+                continue;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Looked up reflectively so the code still builds and runs on Java 8
+    private static ThreadFactory virtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            System.out.println("Virtual threads are not available on Java " + System.getProperty("java.version") + ", using platform threads");
+            return null;
+        }
+    }
+}
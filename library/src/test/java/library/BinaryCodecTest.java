@@ -0,0 +1,168 @@
+package library;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+// A decoded envelope must serialize back to the bytes the sender signed (dpas.sign.format=java), and a broken
+// payload must fail with an IOException instead of anything worse
+public class BinaryCodecTest {
+
+    private static PublicKey clientKey;
+    private static PublicKey serverKey;
+
+    @BeforeClass
+    public static void keys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        clientKey = generator.generateKeyPair().getPublic();
+        serverKey = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void Should_ReproduceSignedBytes_When_Post() throws Exception {
+        assertRoundTrip(post());
+    }
+
+    @Test
+    public void Should_ReproduceSignedBytes_When_NestedEcho() throws Exception {
+        assertRoundTrip(new Envelope(new Request("ECHO", post(), serverKey, bytes(32, 3), 9001), bytes(128, 4)));
+    }
+
+    @Test
+    public void Should_ReproduceSignedBytes_When_ReadResponse() throws Exception {
+        assertRoundTrip(new Envelope(new Response(true, announcements(5), bytes(32, 5), 3), bytes(128, 6)));
+    }
+
+    @Test
+    public void Should_KeepRequestId_When_Decoded() throws Exception {
+        Envelope envelope = post();
+        envelope.setRequestId(42);
+        assertEquals(42, BinaryCodec.decode(BinaryCodec.encode(envelope)).getRequestId());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void Should_KeepBoxesDistinct_When_SenderHadDistinctSmallValues() throws Exception {
+        // Java deserialization makes new boxes, as a replica reloading its boards from disk has them
+        Long first = copy(5L);
+        Long second = copy(5L);
+        assertNotSame(first, second);
+        JSONArray values = new JSONArray();
+        values.add(first);
+        values.add(second);
+        values.add(first);
+        JSONObject object = new JSONObject();
+        object.put("values", values);
+        Envelope envelope = new Envelope(new Response(true, object, bytes(32, 7), 1), null);
+
+        Envelope decoded = assertRoundTrip(envelope);
+        JSONArray copies = (JSONArray) decoded.getResponse().getJsonObject().get("values");
+        assertNotSame(copies.get(0), copies.get(1));
+        assertSame(copies.get(0), copies.get(2));
+    }
+
+    @Test
+    public void Should_FailWithIOException_When_Truncated() throws Exception {
+        byte[] payload = BinaryCodec.encode(new Envelope(new Request("ECHO", post(), serverKey, bytes(32, 3), 9001), bytes(128, 4)));
+        for(int length = 0; length < payload.length; length++) {
+            try {
+                BinaryCodec.decode(Arrays.copyOf(payload, length));
+                fail("Decoded a payload cut at " + length + " of " + payload.length + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    // Every byte set to 0xFF in turn, which turns lengths and counts into huge ones
+    @Test
+    public void Should_NotAllocateClaimedLengths_When_Corrupted() throws Exception {
+        byte[] payload = BinaryCodec.encode(post());
+        for(int i = 1; i < payload.length; i++) {
+            byte[] corrupted = payload.clone();
+            corrupted[i] = (byte) 0xFF;
+            try {
+                BinaryCodec.decode(corrupted);
+            } catch (IOException e) {
+                // refused, as it should be
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void Should_Fail_When_VersionIsUnknown() throws Exception {
+        byte[] payload = BinaryCodec.encode(post());
+        payload[0] = (byte) (BinaryCodec.VERSION + 1);
+        BinaryCodec.decode(payload);
+    }
+
+    private static Envelope assertRoundTrip(Envelope envelope) throws IOException {
+        Envelope decoded = BinaryCodec.decode(BinaryCodec.encode(envelope));
+        assertArrayEquals(serialize(message(envelope)), serialize(message(decoded)));
+        assertArrayEquals(envelope.getSignature(), decoded.getSignature());
+        return decoded;
+    }
+
+    private static Envelope post() {
+        Request post = new Request("POST", clientKey, "Hello from user1", new int[] {1, 4}, bytes(32, 1), bytes(32, 2), 7);
+        return new Envelope(post, bytes(128, 9));
+    }
+
+    private static Object message(Envelope envelope) {
+        return envelope.getRequest() != null ? envelope.getRequest() : envelope.getResponse();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject announcements(int number) {
+        JSONArray list = new JSONArray();
+        for(int i = 0; i < number; i++) {
+            JSONObject announcement = new JSONObject();
+            announcement.put("id", Integer.toString(i));
+            announcement.put("user", "user1");
+            announcement.put("message", "announcement number " + i);
+            announcement.put("ts", i);
+            list.add(announcement);
+        }
+        JSONObject object = new JSONObject();
+        object.put("announcementList", list);
+        return object;
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        return bytes;
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(object);
+        }
+        return bos.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T object) throws Exception {
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(object)))) {
+            return (T) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package library;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+// Compares the binary codec and the signed format with Java serialization on the messages replicas exchange the most.
+// Run with: java -cp library/target/classes:library/target/test-classes:<json-simple jar> library.CodecBenchmark
+public class CodecBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        PublicKey clientKey = generator.generateKeyPair().getPublic();
+        PublicKey serverKey = generator.generateKeyPair().getPublic();
+
+        Request post = new Request("POST", clientKey, "Hello from user1", new int[] {1, 4}, random(32), random(32), 7);
+        Envelope postEnvelope = new Envelope(post, random(256));
+        Envelope nonce = new Envelope(new Request("NONCE", clientKey), random(256));
+        Envelope echo = new Envelope(new Request("ECHO", postEnvelope, serverKey, random(32), 9001), random(256));
+        Envelope read = new Envelope(new Response(true, announcements("user1", 10), random(32), 3), random(256));
+
+        System.out.printf("%-8s %10s %10s %10s %12s %12s %12s %12s %12s%n", "message", "java B", "binary B", "signed B",
+                "java ns/op", "binary ns/op", "signed ns/op", "binary hop", "signed hop");
+        run("NONCE", nonce);
+        run("POST", postEnvelope);
+        run("ECHO", echo);
+        run("READ", read);
+    }
+
+    private static void run(String name, Envelope envelope) throws Exception {
+        byte[] java = FrameCodec.encode(envelope, FrameCodec.JAVA_FORMAT);
+        byte[] binary = FrameCodec.encode(envelope, FrameCodec.BINARY_FORMAT);
+        byte[] signed = FrameCodec.encode(envelope, FrameCodec.SIGNED_FORMAT);
+        checkSignedBytes(name, envelope, FrameCodec.decode(binary));
+        checkCanonicalBytes(name, envelope, FrameCodec.decode(signed));
+
+        long javaTime = time(envelope, FrameCodec.JAVA_FORMAT);
+        long binaryTime = time(envelope, FrameCodec.BINARY_FORMAT);
+        long signedTime = time(envelope, FrameCodec.SIGNED_FORMAT);
+        long binaryHop = hop(envelope, FrameCodec.BINARY_FORMAT);
+        long signedHop = hop(envelope, FrameCodec.SIGNED_FORMAT);
+        System.out.printf("%-8s %10d %10d %10d %12d %12d %12d %12d %12d%n", name, java.length, binary.length, signed.length,
+                javaTime, binaryTime, signedTime, binaryHop, signedHop);
+    }
+
+    // Encode + decode round trips, average nanoseconds per message
+    private static long time(Envelope envelope, byte format) throws Exception {
+        for(int i = 0; i < WARMUP; i++) {
+            FrameCodec.decode(FrameCodec.encode(envelope, format));
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            FrameCodec.decode(FrameCodec.encode(envelope, format));
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    // Everything but the RSA operations for one new message: the bytes to sign, encode, decode, the bytes to verify
+    private static long hop(Envelope envelope, byte format) throws Exception {
+        long start = 0;
+        for(int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if(i == WARMUP) {
+                start = System.nanoTime();
+            }
+            Object message = message(envelope);
+            if(message instanceof Request) {
+                ((Request) message).setRid(((Request) message).getRid());
+            } else {
+                ((Response) message).setRid(((Response) message).getRid());
+            }
+            CanonicalForm.of(message);
+            CanonicalForm.of(message(FrameCodec.decode(FrameCodec.encode(envelope, format))));
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static Object message(Envelope envelope) {
+        return envelope.getRequest() != null ? envelope.getRequest() : envelope.getResponse();
+    }
+
+    // Signatures cover the Java serialization, the decoded copy must reproduce it byte for byte
+    private static void checkSignedBytes(String name, Envelope original, Envelope decoded) throws IOException {
+        Object signed = original.getRequest() != null ? original.getRequest() : original.getResponse();
+        Object copy = decoded.getRequest() != null ? decoded.getRequest() : decoded.getResponse();
+        if(!Arrays.equals(serialize(signed), serialize(copy))) {
+            throw new IllegalStateException(name + ": decoded message no longer matches its signature");
+        }
+    }
+
+    // A message received in the signed format is verified over the bytes it arrived as
+    private static void checkCanonicalBytes(String name, Envelope original, Envelope decoded) throws IOException {
+        Object signed = original.getRequest() != null ? original.getRequest() : original.getResponse();
+        Object copy = decoded.getRequest() != null ? decoded.getRequest() : decoded.getResponse();
+        if(!Arrays.equals(CanonicalForm.encode(signed), CanonicalForm.of(copy)) || !Arrays.equals(CanonicalForm.encode(copy), CanonicalForm.of(copy))) {
+            throw new IllegalStateException(name + ": signed frame does not carry the canonical form");
+        }
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(object);
+        }
+        return bos.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject announcements(String user, int number) {
+        JSONArray list = new JSONArray();
+        for(int i = 0; i < number; i++) {
+            JSONObject announcement = new JSONObject();
+            announcement.put("id", Integer.toString(i));
+            announcement.put("user", user);
+            announcement.put("message", "announcement number " + i);
+            announcement.put("ts", i);
+            announcement.put("date", "01-05-2020 at 12:00");
+            JSONArray references = new JSONArray();
+            references.add(Integer.toString(i / 2));
+            announcement.put("ref_announcements", references);
+            list.add(announcement);
+        }
+        JSONObject result = new JSONObject();
+        result.put("announcementList", list);
+        return result;
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,156 @@
+package library;
+
+import org.json.simple.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Frames and the signed format: [format][request id][message length][canonical message][signature length][signature].
+// Lengths come from peers that are not authenticated yet, none may be trusted before it is checked
+public class FrameCodecTest {
+
+    private static PublicKey clientKey;
+
+    @BeforeClass
+    public static void keys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        clientKey = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void Should_KeepCanonicalBytes_When_SignedFormat() throws Exception {
+        Envelope envelope = post(new byte[] {1, 2, 3});
+        envelope.setRequestId(7);
+        Envelope decoded = FrameCodec.decode(FrameCodec.encode(envelope, FrameCodec.SIGNED_FORMAT));
+
+        assertEquals(7, decoded.getRequestId());
+        assertArrayEquals(envelope.getSignature(), decoded.getSignature());
+        assertArrayEquals(CanonicalForm.encode(envelope.getRequest()), CanonicalForm.of(decoded.getRequest()));
+    }
+
+    @Test
+    public void Should_KeepMissingSignature_When_SignedFormat() throws Exception {
+        assertNull(FrameCodec.decode(FrameCodec.encode(post(null), FrameCodec.SIGNED_FORMAT)).getSignature());
+    }
+
+    @Test
+    public void Should_ReadEveryFormat_When_Framed() throws Exception {
+        for(byte format : new byte[] {FrameCodec.SIGNED_FORMAT, FrameCodec.BINARY_FORMAT, FrameCodec.JAVA_FORMAT}) {
+            byte[] frame = FrameCodec.frame(FrameCodec.encode(post(new byte[] {4}), format));
+            Envelope decoded = FrameCodec.read(new ByteArrayInputStream(frame));
+            assertEquals("Hello", decoded.getRequest().getMessage());
+        }
+    }
+
+    @Test
+    public void Should_FailWithIOException_When_SignedFrameIsTruncated() throws Exception {
+        byte[] payload = FrameCodec.encode(post(new byte[64]), FrameCodec.SIGNED_FORMAT);
+        for(int length = 1; length < payload.length; length++) {
+            try {
+                FrameCodec.decode(Arrays.copyOf(payload, length));
+                fail("Decoded a signed frame cut at " + length + " of " + payload.length + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void Should_Fail_When_SignatureLengthIsHuge() throws Exception {
+        byte[] payload = FrameCodec.encode(post(new byte[] {1, 2, 3}), FrameCodec.SIGNED_FORMAT);
+        // The signature length sits right before the 3 signature bytes
+        ByteBuffer.wrap(payload).putInt(payload.length - 3 - 4, Integer.MAX_VALUE - 8);
+        FrameCodec.decode(payload);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void Should_Fail_When_SignatureLengthIsNegative() throws Exception {
+        byte[] payload = FrameCodec.encode(post(new byte[] {1, 2, 3}), FrameCodec.SIGNED_FORMAT);
+        ByteBuffer.wrap(payload).putInt(payload.length - 3 - 4, -2);
+        FrameCodec.decode(payload);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void Should_Fail_When_MessageLengthIsHuge() throws Exception {
+        byte[] payload = FrameCodec.encode(post(new byte[] {1, 2, 3}), FrameCodec.SIGNED_FORMAT);
+        // After the format byte and the request id
+        ByteBuffer.wrap(payload).putInt(1 + 8, Integer.MAX_VALUE);
+        FrameCodec.decode(payload);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void Should_Fail_When_SignedFrameHasTrailingBytes() throws Exception {
+        byte[] payload = FrameCodec.encode(post(new byte[] {1, 2, 3}), FrameCodec.SIGNED_FORMAT);
+        FrameCodec.decode(Arrays.copyOf(payload, payload.length + 1));
+    }
+
+    // Tag 12 used to carry a Java serialized value, which would be deserialized before the signature is checked
+    @Test(expected = StreamCorruptedException.class)
+    public void Should_Fail_When_SignedFrameHoldsSerializedValue() throws Exception {
+        Envelope envelope = post(new byte[] {1, 2, 3});
+        JSONObject object = new JSONObject();
+        object.put("key", "value");
+        envelope.getRequest().setJsonObject(object);
+        byte[] payload = FrameCodec.encode(envelope, FrameCodec.SIGNED_FORMAT);
+        // The STRING tag, then the length and bytes of "value"
+        byte[] value = {1, 0, 0, 0, 5, 'v', 'a', 'l', 'u', 'e'};
+        int at = indexOf(payload, value);
+        assertTrue(at > 0);
+        payload[at] = 12;
+        FrameCodec.decode(payload);
+    }
+
+    @Test
+    public void Should_LeaveSignedFormat_When_PayloadHoldsOtherValue() throws Exception {
+        Envelope envelope = post(new byte[] {1, 2, 3});
+        JSONObject object = new JSONObject();
+        object.put("date", new Date(0));
+        envelope.getRequest().setJsonObject(object);
+        byte[] payload = FrameCodec.encode(envelope, FrameCodec.SIGNED_FORMAT);
+
+        assertNotEquals(FrameCodec.SIGNED_FORMAT, payload[0]);
+        assertEquals(new Date(0), FrameCodec.decode(payload).getRequest().getJsonObject().get("date"));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void Should_Fail_When_FrameIsOversized() throws Exception {
+        byte[] header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE).putInt(FrameCodec.MAX_FRAME_SIZE + 1).array();
+        FrameCodec.read(new ByteArrayInputStream(header));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void Should_Fail_When_FrameIsEmpty() throws Exception {
+        byte[] header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE).putInt(0).array();
+        FrameCodec.read(new ByteArrayInputStream(header));
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for(int i = 0; i + part.length <= bytes.length; i++) {
+            if(Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Envelope post(byte[] signature) {
+        Request post = new Request("POST", clientKey, "Hello", new int[] {1}, new byte[] {5}, new byte[] {6}, 2);
+        return new Envelope(post, signature);
+    }
+}
@@ -0,0 +1,114 @@
+package library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayWindowTest {
+
+    @Test
+    public void Should_AcceptOnce_When_NumberRepeats() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(1));
+        assertFalse(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(2));
+        assertFalse(window.accept(1));
+    }
+
+    @Test
+    public void Should_Refuse_When_NumberIsNotPositive() {
+        ReplayWindow window = new ReplayWindow();
+        assertFalse(window.accept(0));
+        assertFalse(window.accept(-1));
+        assertFalse(window.accept(Long.MIN_VALUE));
+        assertEquals(0, window.getHighest());
+    }
+
+    @Test
+    public void Should_AcceptOnce_When_OutOfOrderWithinWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(10));
+        assertTrue(window.accept(8));
+        assertTrue(window.accept(9));
+        assertFalse(window.accept(8));
+        assertFalse(window.accept(9));
+        assertEquals(10, window.getHighest());
+    }
+
+    @Test
+    public void Should_Refuse_When_BelowWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(100));
+        // The oldest number still inside the window, and the first one out of it
+        assertTrue(window.accept(100 - ReplayWindow.WINDOW + 1));
+        assertFalse(window.accept(100 - ReplayWindow.WINDOW));
+        assertFalse(window.accept(1));
+    }
+
+    @Test
+    public void Should_ForgetOldNumbers_When_JumpingOverWindow() {
+        ReplayWindow window = new ReplayWindow();
+        for(long sequence = 1; sequence <= 10; sequence++) {
+            assertTrue(window.accept(sequence));
+        }
+        long jump = 10 + ReplayWindow.WINDOW + 26;
+        assertTrue(window.accept(jump));
+        assertEquals(jump, window.getHighest());
+        // Never seen and still in the window
+        assertTrue(window.accept(jump - 1));
+        assertTrue(window.accept(jump - ReplayWindow.WINDOW + 1));
+        // Seen before the jump, and now out of the window anyway
+        assertFalse(window.accept(10));
+        assertFalse(window.accept(jump));
+    }
+
+    @Test
+    public void Should_DropOldNumber_When_JumpIsExactlyWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(1 + ReplayWindow.WINDOW));
+        assertFalse(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(2));
+    }
+
+    @Test
+    public void Should_KeepSeenBits_When_JumpIsWindowMinusOne() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(ReplayWindow.WINDOW));
+        // Offset WINDOW - 1, the top bit of the window
+        assertFalse(window.accept(1));
+        assertTrue(window.accept(2));
+    }
+
+    @Test
+    public void Should_RefuseReplays_When_RestoredFromDisk() throws Exception {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(5));
+        assertTrue(window.accept(3));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(window);
+        }
+        ReplayWindow restored;
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            restored = (ReplayWindow) in.readObject();
+        }
+
+        assertEquals(5, restored.getHighest());
+        assertFalse(restored.accept(5));
+        assertFalse(restored.accept(3));
+        assertTrue(restored.accept(4));
+        assertTrue(restored.accept(6));
+    }
+}
@@ -0,0 +1,42 @@
+package library;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionTest {
+
+    @Test
+    public void Should_OpenSameSession_When_SealedForRSAReplica() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair replica = generator.generateKeyPair();
+        Session session = Session.generate();
+
+        assertTrue(Session.canSeal(replica.getPublic()));
+        Session opened = Session.open(replica.getPrivate(), session.seal(replica.getPublic()), null);
+        assertTrue(opened.hasId(session.getId()));
+    }
+
+    @Test
+    public void Should_NotSeal_When_ReplicaKeyIsEC() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        KeyPair replica = generator.generateKeyPair();
+
+        assertFalse(Session.canSeal(replica.getPublic()));
+        assertFalse(Session.canSeal(null));
+        try {
+            Session.generate().seal(replica.getPublic());
+            fail("An EC key can not seal a session key");
+        } catch (GeneralSecurityException e) {
+            // Callers check canSeal first and keep signing instead
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package library;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+
+// Sign and verify throughput of a POST request with each scheme Signatures picks by key type.
+// Ed25519 needs JDK 15 or newer, it is skipped on older JDKs.
+// Run with: java -cp library/target/classes:library/target/test-classes:<json-simple jar> library.SignatureSchemesBenchmark
+public class SignatureSchemesBenchmark {
+
+    private static final long WARMUP_MILLIS = 2000;
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%-16s %-16s %10s %12s %12s%n", "key", "scheme", "sig B", "sign ops/s", "verify ops/s");
+
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        run("RSA 2048", rsa.generateKeyPair());
+
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(new ECGenParameterSpec("secp256r1"));
+        run("ECDSA P-256", ec.generateKeyPair());
+
+        try {
+            run("Ed25519", KeyPairGenerator.getInstance("Ed25519").generateKeyPair());
+        } catch (NoSuchAlgorithmException e) {
+            System.out.printf("%-16s not supported by this JDK%n", "Ed25519");
+        }
+    }
+
+    private static void run(String name, KeyPair keys) throws Exception {
+        Request post = new Request("POST", keys.getPublic(), "Hello from user1", new int[] {1, 4}, random(32), random(32), 7);
+        byte[] signature = Signatures.sign(keys.getPrivate(), post);
+        if(!Signatures.verify(keys.getPublic(), post, signature)) {
+            throw new IllegalStateException(name + ": signature does not verify");
+        }
+
+        signRate(keys, post, WARMUP_MILLIS);
+        long signs = signRate(keys, post, RUN_MILLIS);
+        verifyRate(keys, post, signature, WARMUP_MILLIS);
+        long verifies = verifyRate(keys, post, signature, RUN_MILLIS);
+        System.out.printf("%-16s %-16s %10d %12d %12d%n", name, Signatures.algorithmFor(keys.getPrivate()), signature.length, signs, verifies);
+    }
+
+    private static long signRate(KeyPair keys, Request request, long millis) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long end = start + millis * 1_000_000L;
+        long now;
+        do {
+            Signatures.sign(keys.getPrivate(), request);
+            operations++;
+        } while((now = System.nanoTime()) < end);
+        return operations * 1_000_000_000L / (now - start);
+    }
+
+    private static long verifyRate(KeyPair keys, Request request, byte[] signature, long millis) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long end = start + millis * 1_000_000L;
+        long now;
+        do {
+            Signatures.verify(keys.getPublic(), request, signature);
+            operations++;
+        } while((now = System.nanoTime()) < end);
+        return operations * 1_000_000_000L / (now - start);
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
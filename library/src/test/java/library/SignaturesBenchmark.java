@@ -0,0 +1,104 @@
+package library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Arrays;
+
+// Signing and verifying a POST request with a fresh Signature and Java serialization per call (as the CryptoManagers used to)
+// and with the per-thread engines in Signatures over the canonical form, then MAC'd with a Session key instead,
+// and the digest replicas agree on the request by.
+// Reports operations per second and bytes allocated per operation.
+// Run with: java -cp library/target/classes:library/target/test-classes:<json-simple jar> library.SignaturesBenchmark
+public class SignaturesBenchmark {
+
+    private static final int WARMUP = 5000;
+    private static final int ITERATIONS = 20000;
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        Request post = new Request("POST", keys.getPublic(), "Hello from user1", new int[] {1, 4}, random(32), random(32), 7);
+        byte[] signature = Signatures.sign(keys.getPrivate(), post);
+
+        if(!Arrays.equals(signature, Signatures.sign(keys.getPrivate(), post)) || !Signatures.verify(keys.getPublic(), post, signature)) {
+            throw new IllegalStateException("signatures over the canonical form are not reproducible");
+        }
+
+        System.out.printf("signed bytes: java %d, canonical %d%n", serialize(post).length, CanonicalForm.encode(post).length);
+        System.out.printf("%-16s %12s %12s%n", "operation", "ops/s", "B/op");
+        run("encode java", () -> serialize(post));
+        run("encode canonical", () -> CanonicalForm.encode(post));
+        run("sign fresh", () -> signFresh(keys, post));
+        run("sign pooled", () -> Signatures.sign(keys.getPrivate(), post));
+        run("verify fresh", () -> verifyFresh(keys, post, signature));
+        run("verify pooled", () -> Signatures.verify(keys.getPublic(), post, signature));
+
+        Session session = Session.generate();
+        byte[] tag = Signatures.mac(session.getKey(), post);
+        run("mac session", () -> Signatures.mac(session.getKey(), post));
+        run("verify mac", () -> Signatures.verifyMac(session.getKey(), post, tag));
+
+        // What another replica gets: the same request with nonces of its own
+        Request copy = new Request("POST", keys.getPublic(), "Hello from user1", new int[] {1, 4}, random(32), random(32), 7);
+        if(!Arrays.equals(Signatures.digest(post), Signatures.digest(copy))) {
+            throw new IllegalStateException("replicas would not agree on the digest of the same request");
+        }
+        run("digest proposal", () -> Signatures.digest(post));
+    }
+
+    private static void run(String name, Operation operation) throws Exception {
+        for(int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        System.out.printf("%-16s %12d %12d%n", name, ITERATIONS * 1_000_000_000L / elapsed, allocated / ITERATIONS);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static byte[] signFresh(KeyPair keys, Request request) throws Exception {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keys.getPrivate());
+        signature.update(serialize(request));
+        return signature.sign();
+    }
+
+    private static boolean verifyFresh(KeyPair keys, Request request, byte[] signature) throws Exception {
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(keys.getPublic());
+        verifier.update(serialize(request));
+        return verifier.verify(signature);
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(object);
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+// Admission control for client requests: a token bucket per public key and a cap on how many are in flight.
+// Checked right after decoding, so a client over its budget costs no signature work
+public class Admission {
+
+    // Above this many buckets the idle (full) ones are dropped, keys are not authenticated yet
+    private static final int MAX_BUCKETS = 10000;
+
+    private final double rate;
+    private final double burst;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final ConcurrentHashMap<PublicKey, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public Admission(double rate, int burst, int maxInFlight) {
+        this.rate = rate;
+        this.burst = burst;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    // False when the key used up its tokens or too many requests are in flight. Call release() after a true
+    // The slot is taken first, so a request refused for load does not also cost its client a token
+    public boolean tryAcquire(PublicKey key) {
+        if(!inFlight.tryAcquire()) {
+            return false;
+        }
+        if(key != null && !bucket(key).take()) {
+            inFlight.release();
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        inFlight.release();
+    }
+
+    public int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    private Bucket bucket(PublicKey key) {
+        Bucket bucket = buckets.get(key);
+        if(bucket == null) {
+            if(buckets.size() >= MAX_BUCKETS) {
+                sweep();
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket());
+        }
+        return bucket;
+    }
+
+    private void sweep() {
+        Iterator<Map.Entry<PublicKey, Bucket>> iterator = buckets.entrySet().iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().getValue().isFull()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private class Bucket {
+
+        private double tokens = burst;
+        private long last = System.nanoTime();
+
+        synchronized boolean take() {
+            refill();
+            if(tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= burst;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package server;
 
+import library.FrameServer;
+
 import java.io.IOException;
-import java.net.ServerSocket;
 
 public class App 
 {
@@ -18,7 +19,7 @@ public class App
 
         while (nServers < totalReplicas){  // N > 3f
     		try{
-				new Server(new ServerSocket(port), port);
+				new Server(FrameServer.openChannel(port), port);
 				port++;
 				nServers++;
 			} catch (IOException e) {
@@ -0,0 +1,65 @@
+package server;
+
+import java.security.PublicKey;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One run of the authenticated double echo, for one message of one client. Replicas that echoed or readied it are
+// counted once each, whatever order their messages and the client's own request arrive in. A delivered run is kept
+// for a while, so a late ECHO/READY or the same request sent again finds it instead of starting over
+class Broadcast {
+
+    private final Set<PublicKey> echoes = ConcurrentHashMap.newKeySet();
+    private final Set<PublicKey> readies = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean sentEcho = new AtomicBoolean();
+    private final AtomicBoolean sentReady = new AtomicBoolean();
+    private final AtomicBoolean delivered = new AtomicBoolean();
+    // Request handlers waiting for the message wait on this
+    private final CountDownLatch delivery = new CountDownLatch(1);
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    // How many replicas echoed the message so far, this one included
+    int echo(PublicKey replica) {
+        lastUsed = System.currentTimeMillis();
+        echoes.add(replica);
+        return echoes.size();
+    }
+
+    int ready(PublicKey replica) {
+        lastUsed = System.currentTimeMillis();
+        readies.add(replica);
+        return readies.size();
+    }
+
+    // True for the one caller that gets to send this replica's ECHO, READY or deliver the message
+    boolean startEcho() {
+        return sentEcho.compareAndSet(false, true);
+    }
+
+    boolean startReady() {
+        return sentReady.compareAndSet(false, true);
+    }
+
+    boolean deliver() {
+        if(delivered.compareAndSet(false, true)) {
+            delivery.countDown();
+            return true;
+        }
+        return false;
+    }
+
+    boolean isDelivered() {
+        return delivered.get();
+    }
+
+    boolean await(long millis) throws InterruptedException {
+        return delivery.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isIdle(long millis) {
+        return System.currentTimeMillis() - lastUsed > millis;
+    }
+}
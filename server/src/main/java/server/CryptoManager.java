@@ -3,38 +3,64 @@ package server;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
 import java.security.SignatureException;
 
-import java.security.KeyStore;
-
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableEntryException;
 import java.security.InvalidKeyException;
-import java.security.cert.CertificateException;
-import java.security.KeyStoreException;
-
-import java.io.FileInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
 
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashMap; 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
+import library.ReplayWindow;
 import library.Request;
 import library.Response;
+import library.Session;
+import library.Signatures;
 
 public class CryptoManager {
 
-    private HashMap<PublicKey, byte[]> nonces = null;
+    // Sessions unused for this long are forgotten, their clients get -16 and open a new one
+    private static final long SESSION_TTL = Long.getLong("dpas.server.session.ttl", 600000L);
+    // Past this many sessions the idle ones are swept out
+    private static final int SESSIONS_SWEEP = 10000;
+
+    // A request nonce of this size is a number the client gave it (dpas.client.freshness=counter), nonces handed out
+    // here are longer
+    public static final int SEQUENCE_BYTES = 8;
+
+    // Reached from every verify and apply thread, a nonce is removed when it is used so it only works once
+    private final ConcurrentHashMap<PublicKey, byte[]> nonces = new ConcurrentHashMap<>();
+    // The numbers each client already used, saved by the Server so a restart does not make them valid again
+    private ConcurrentHashMap<PublicKey, ReplayWindow> sequences = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteBuffer, Session> sessions = new ConcurrentHashMap<>();
+    // The link each other replica opened to this one, by its port. A new link replaces the old one
+    private final ConcurrentHashMap<Integer, Session> links = new ConcurrentHashMap<>();
     private int port = 0;
+    // Keystore contents, loaded at startup and on reload()
+    private volatile KeyCache keys = KeyCache.EMPTY;
 
     protected CryptoManager(int port){
-        this.nonces = new HashMap<>();
         this.port = port;
+        reload();
+    }
+
+    // Reads the keystore again, e.g. after a user was added to it. Keeps the keys it had when that fails
+    public boolean reload() {
+        try {
+            keys = KeyCache.load("keystores/port_" + port + "/keystore", "changeit".toCharArray(), "server");
+            return true;
+        } catch (
+            GeneralSecurityException |
+            IOException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
     
     
@@ -46,19 +72,7 @@ public class CryptoManager {
     
     byte[] signRequest(Request request) {
 		try {
-			// Initialize needed structures
-			PrivateKey myKey = getPrivateKeyFromKs();
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert request to byteArray
-			out.writeObject(request);
-			out.flush();
-			byte[] requestBytes = bos.toByteArray();
-			// Sign with private key
-			signature.initSign(myKey);
-			signature.update(requestBytes);
-			return signature.sign();
+			return Signatures.sign(getPrivateKeyFromKs(), request);
 		} catch (
 			InvalidKeyException		 |
 			NoSuchAlgorithmException |
@@ -71,19 +85,7 @@ public class CryptoManager {
     
 	byte[] signResponse(Response response) {
 		try {
-			// Initialize needed structures
-			PrivateKey myKey = getPrivateKeyFromKs();
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert response to byteArray
-			out.writeObject(response);
-			out.flush();
-			byte[] responseBytes = bos.toByteArray();
-			// Sign with private key
-			signature.initSign(myKey);
-			signature.update(responseBytes);
-			return signature.sign();
+			return Signatures.sign(getPrivateKeyFromKs(), response);
 		} catch (
 			InvalidKeyException		 |
 			NoSuchAlgorithmException |
@@ -92,51 +94,76 @@ public class CryptoManager {
 			e.printStackTrace();
 		}
 		return new byte[0];
-    }
+	}
 
 	boolean verifyRequest(Request request, byte[] signature, PublicKey keyFrom) {
-    	try {
-			// Initialize needed structures
-			Signature verifySignature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert response to byteArray
-			out.writeObject(request);
-			out.flush();
-			byte[] requestBytes = bos.toByteArray();
-			// Verify signature
-			verifySignature.initVerify(keyFrom);
-			verifySignature.update(requestBytes);
-			return verifySignature.verify(signature);
+		try {
+			return Signatures.verify(keyFrom, request, signature);
 		} catch (
-			InvalidKeyException 	 |
+			InvalidKeyException		 |
 			NoSuchAlgorithmException |
-			SignatureException 		 |
+			SignatureException		 |
 			IOException e) {
 			e.printStackTrace();
 		}
 		return false;
 	}
 	
+	byte[] macRequest(Request request, Session session) {
+		try {
+			return Signatures.mac(session.getKey(), request);
+		} catch (
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			IOException e) {
+			e.printStackTrace();
+		}
+		return new byte[0];
+	}
+
+	byte[] macResponse(Response response, Session session) {
+		try {
+			return Signatures.mac(session.getKey(), response);
+		} catch (
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			IOException e) {
+			e.printStackTrace();
+		}
+		return new byte[0];
+	}
+
+	boolean verifyRequest(Request request, byte[] tag, Session session) {
+		try {
+			return Signatures.verifyMac(session.getKey(), request, tag);
+		} catch (
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	boolean verifyResponse(Response response, byte[] tag, Session session) {
+		try {
+			return Signatures.verifyMac(session.getKey(), response, tag);
+		} catch (
+			InvalidKeyException		 |
+			NoSuchAlgorithmException |
+			IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 	boolean verifyResponse(Response response, byte[] signature, String from) {
 		try {
-			// Initialize needed structures
-			PublicKey keyFrom = getPublicKeyFromKs(from);
-			Signature verifySignature = Signature.getInstance("SHA256withRSA");
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			// Convert response to byteArray
-			out.writeObject(response);
-			out.flush();
-			byte[] responseBytes = bos.toByteArray();
-			// Verify signature
-			verifySignature.initVerify(keyFrom);
-			verifySignature.update(responseBytes);
-			return verifySignature.verify(signature);
+			return Signatures.verify(getPublicKeyFromKs(from), response, signature);
 		} catch (
-			InvalidKeyException 	 |
+			InvalidKeyException		 |
 			NoSuchAlgorithmException |
-			SignatureException 		 |
+			SignatureException		 |
 			IOException e) {
 			e.printStackTrace();
 		}
@@ -151,33 +178,7 @@ public class CryptoManager {
 //////////////////////////////////////////
 
     public String checkKey(PublicKey publicKey) {
-        char[] passphrase = "changeit".toCharArray();
-        KeyStore ks = null;
-        try {
-            ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream("keystores/port_" + port + "/keystore"), passphrase);
-
-            Enumeration<String> aliases = ks.aliases();
-
-            for (; aliases.hasMoreElements(); ) {
-
-                String alias = aliases.nextElement();
-
-                if (ks.isCertificateEntry(alias)) {
-                    PublicKey key = ks.getCertificate(alias).getPublicKey();
-                    if (key.equals(publicKey)) {
-                        return alias;
-                    }
-                }
-            }
-        } catch (
-            KeyStoreException | 
-            CertificateException | 
-            NoSuchAlgorithmException | 
-            IOException e) {
-            e.printStackTrace();
-        }
-        return "";
+        return keys.aliasOf(publicKey);
     }
 
     
@@ -192,11 +193,8 @@ public class CryptoManager {
 	}
 
     public boolean checkNonce(PublicKey clientKey, byte[] nonce) {
-    	if(nonces.containsKey(clientKey) && Arrays.equals(nonces.get(clientKey), nonce)) {
-        	nonces.put(clientKey, null);
-        	return true;
-        }
-        return false;
+    	byte[] expected = nonces.get(clientKey);
+    	return expected != null && Arrays.equals(expected, nonce) && nonces.remove(clientKey, expected);
     }    
 
     public void generateRandomNonce(PublicKey clientKey) {
@@ -206,6 +204,97 @@ public class CryptoManager {
         nonces.put(clientKey, nonce);
     }
 
+    public static boolean isSequence(byte[] nonce) {
+        return nonce != null && nonce.length == SEQUENCE_BYTES;
+    }
+
+    // Instead of checkNonce for a numbered request: true the first time the client uses that number
+    public boolean checkSequence(PublicKey clientKey, byte[] sequence) {
+        ReplayWindow window = sequences.get(clientKey);
+        if(window == null) {
+            window = new ReplayWindow();
+            ReplayWindow existing = sequences.putIfAbsent(clientKey, window);
+            if(existing != null) {
+                window = existing;
+            }
+        }
+        return window.accept(ByteBuffer.wrap(sequence).getLong());
+    }
+
+    ConcurrentHashMap<PublicKey, ReplayWindow> getSequences() {
+        return sequences;
+    }
+
+    void setSequences(ConcurrentHashMap<PublicKey, ReplayWindow> sequences) {
+        this.sequences = sequences;
+    }
+
+
+/////////////////////////////////////////////////////////
+//
+//            Session Methods
+//
+/////////////////////////////////////////////////////////
+
+    // Opens the key sealed in a SESSION request already verified against clientKey, null when it cannot
+    Session openSession(PublicKey clientKey, byte[] sealed) {
+        try {
+            Session session = Session.open(getPrivateKeyFromKs(), sealed, clientKey);
+            if(sessions.size() >= SESSIONS_SWEEP) {
+                sweepSessions();
+            }
+            sessions.put(ByteBuffer.wrap(session.getId()), session);
+            return session;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Null for unknown and expired sessions
+    Session getSession(byte[] id) {
+        if(id == null) {
+            return null;
+        }
+        ByteBuffer handle = ByteBuffer.wrap(id);
+        Session session = sessions.get(handle);
+        if(session != null && session.isIdle(SESSION_TTL)) {
+            sessions.remove(handle, session);
+            return null;
+        }
+        if(session != null) {
+            session.touch();
+        }
+        return session;
+    }
+
+    // Opens the key sealed in a LINK request already verified as coming from the replica on port
+    Session openLink(int port, byte[] sealed) {
+        try {
+            Session link = Session.open(getPrivateKeyFromKs(), sealed, getPublicKeyFromKs("server" + port));
+            links.put(port, link);
+            return link;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Null unless it is the current link from that replica
+    Session getLink(int port, byte[] id) {
+        Session link = links.get(port);
+        return link != null && link.hasId(id) ? link : null;
+    }
+
+    private void sweepSessions() {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().isIdle(SESSION_TTL)) {
+                iterator.remove();
+            }
+        }
+    }
+
 	// este metodo é para os testes do old envelope acho eu
     public byte[] generateRandomNonce() {
         SecureRandom random = new SecureRandom();
@@ -222,41 +311,11 @@ public class CryptoManager {
 ///////////////////////////////////////////
     
     public PrivateKey getPrivateKeyFromKs() {
-        char[] passphrase = "changeit".toCharArray();
-        KeyStore ks = null;
-        PrivateKey key = null;
-
-        try {
-            ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream("keystores/port_" + port + "/keystore"), passphrase);
-            key = (PrivateKey) ks.getKey("server", passphrase);
-        } catch (
-            NoSuchAlgorithmException	| 
-            UnrecoverableEntryException | 
-            KeyStoreException 			| 
-            CertificateException 		|
-            IOException e) {
-            e.printStackTrace();
-        }
-        return key;
+        return keys.getPrivateKey();
     }
     
     PublicKey getPublicKeyFromKs(String alias) {
-        char[] passphrase = "changeit".toCharArray();
-        KeyStore ks = null;
-
-        try{
-            ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream("keystores/port_" + port + "/keystore"), passphrase);
-            return ks.getCertificate(alias).getPublicKey();
-        } catch (
-            CertificateException | 
-            NoSuchAlgorithmException | 
-            IOException | 
-            KeyStoreException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return keys.getPublicKey(alias);
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package server;
+
+import library.Tasks;
+
+import java.util.function.IntConsumer;
+
+// Persistence stage: writers mark which files they changed and wait, one thread rewrites each
+// dirty file once for everybody that asked before it started (group commit)
+public class GroupCommit {
+
+    private final IntConsumer flush;
+    private final Object lock = new Object();
+    private int dirty = 0;
+    private long requested = 0;
+    private long flushed = 0;
+    private long flushes = 0;
+
+    public GroupCommit(String name, IntConsumer flush) {
+        this.flush = flush;
+        Thread thread = Tasks.newThread(this::run);
+        thread.setName(name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Returns once the given files have been written with this caller's changes in them
+    public void commit(int files) {
+        synchronized(lock) {
+            dirty |= files;
+            long ticket = ++requested;
+            lock.notifyAll();
+            while(flushed < ticket) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public int pending() {
+        synchronized(lock) {
+            return (int) (requested - flushed);
+        }
+    }
+
+    public long flushes() {
+        synchronized(lock) {
+            return flushes;
+        }
+    }
+
+    private void run() {
+        while(true) {
+            int files;
+            long upTo;
+            synchronized(lock) {
+                while(dirty == 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                files = dirty;
+                upTo = requested;
+                dirty = 0;
+            }
+            try {
+                flush.accept(files);
+            } catch (RuntimeException e) {
+                // e.g. a board changed while it was being serialized: write it again
+                e.printStackTrace();
+                try {
+                    flush.accept(files);
+                } catch (RuntimeException again) {
+                    again.printStackTrace();
+                }
+            }
+            synchronized(lock) {
+                flushed = upTo;
+                flushes++;
+                lock.notifyAll();
+            }
+        }
+    }
+}
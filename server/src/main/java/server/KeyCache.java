@@ -0,0 +1,85 @@
+package server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// What a replica needs from its keystore, read once: its private key and the public key behind every alias.
+// Immutable, CryptoManager swaps in a new one when the keystore is reloaded
+final class KeyCache {
+
+    static final KeyCache EMPTY = new KeyCache(null, Collections.<String, PublicKey>emptyMap(), Collections.<ByteBuffer, String>emptyMap());
+
+    private final PrivateKey privateKey;
+    // Every alias, including the replica's own key entry
+    private final Map<String, PublicKey> publicKeys;
+    // Encoded key of every trusted certificate (clients and other replicas) to its alias, so checkKey
+    // does not scan the keystore on every request
+    private final Map<ByteBuffer, String> aliases;
+
+    private KeyCache(PrivateKey privateKey, Map<String, PublicKey> publicKeys, Map<ByteBuffer, String> aliases) {
+        this.privateKey = privateKey;
+        this.publicKeys = publicKeys;
+        this.aliases = aliases;
+    }
+
+    static KeyCache load(String path, char[] passphrase, String privateAlias) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try(FileInputStream in = new FileInputStream(path)) {
+            ks.load(in, passphrase);
+        }
+        Map<String, PublicKey> publicKeys = new HashMap<>();
+        Map<ByteBuffer, String> aliases = new HashMap<>();
+        Enumeration<String> entries = ks.aliases();
+        while(entries.hasMoreElements()) {
+            String alias = entries.nextElement();
+            Certificate certificate = ks.getCertificate(alias);
+            if(certificate == null) {
+                continue;
+            }
+            publicKeys.put(normalize(alias), certificate.getPublicKey());
+            if(ks.isCertificateEntry(alias)) {
+                // The first alias wins, as it did when the keystore was scanned in order
+                aliases.putIfAbsent(key(certificate.getPublicKey()), alias);
+            }
+        }
+        PrivateKey privateKey = (PrivateKey) ks.getKey(privateAlias, passphrase);
+        return new KeyCache(privateKey, Collections.unmodifiableMap(publicKeys), Collections.unmodifiableMap(aliases));
+    }
+
+    PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    // Null for aliases the keystore does not have
+    PublicKey getPublicKey(String alias) {
+        return alias == null ? null : publicKeys.get(normalize(alias));
+    }
+
+    // Alias of the trusted certificate holding this key, "" when there is none
+    String aliasOf(PublicKey publicKey) {
+        byte[] encoded = publicKey == null ? null : publicKey.getEncoded();
+        String alias = encoded == null ? null : aliases.get(ByteBuffer.wrap(encoded));
+        return alias == null ? "" : alias;
+    }
+
+    // Keys are compared by their X.509 encoding, whatever provider decoded them
+    private static ByteBuffer key(PublicKey publicKey) {
+        return ByteBuffer.wrap(publicKey.getEncoded());
+    }
+
+    // JKS aliases are case insensitive
+    private static String normalize(String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,132 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Every request a replica understands and what it goes through before its handler runs:
+// error codes checked before and after authentication, how the signature is checked and whether it is reliably broadcast
+public enum Operation {
+
+    REGISTER(Origin.CLIENT, Auth.USERNAME, codes(-7), codes(-2), true, false),
+    POST(Origin.CLIENT, Auth.REGISTERED, codes(-7, -1), codes(-4, -5), true, false),
+    POSTGENERAL(Origin.CLIENT, Auth.REGISTERED, codes(-7, -1), codes(-4, -5), true, false),
+    READ(Origin.CLIENT, Auth.REGISTERED, codes(-7, -1), codes(-3, -10, -6), true, true),
+    READGENERAL(Origin.CLIENT, Auth.REGISTERED, codes(-7, -1), codes(-6, -10), true, true),
+    READCOMPLETE(Origin.CLIENT, Auth.REGISTERED, codes(-7, -1), codes(-3), false, false),
+    WTS(Origin.CLIENT, Auth.REGISTERED, codes(-7, -1), codes(), false, false),
+    WTSGENERAL(Origin.CLIENT, Auth.REGISTERED, codes(-7, -1), codes(), false, false),
+    NONCE(Origin.CLIENT, Auth.OWN_KEY),
+    SESSION(Origin.CLIENT, Auth.OWN_KEY, codes(-7), codes(), false, false),
+    SERVERNONCE(Origin.PEER, Auth.OWN_KEY),
+    LINK(Origin.PEER, Auth.REPLICA),
+    ECHO(Origin.PEER, Auth.REPLICA, codes(), codes(-17), false, false),
+    READY(Origin.PEER, Auth.REPLICA, codes(), codes(-17), false, false),
+
+    // Test controls
+    DELETEALL,
+    SHUTDOWN,
+    REPLAY_FLAG_TRUE,
+    REPLAY_FLAG_FALSE,
+    INTEGRITY_FLAG_TRUE,
+    INTEGRITY_FLAG_FALSE,
+    DROP_NONCE_FLAG_TRUE,
+    DROP_NONCE_FLAG_FALSE,
+    DROP_OPERATION_FLAG_TRUE,
+    DROP_OPERATION_FLAG_FALSE,
+    ATOMIC_WRITE_FLAG_TRUE,
+    ATOMIC_WRITE_FLAG_FALSE,
+    CONCURRENT_WRITE_FLAG_TRUE,
+    CONCURRENT_WRITE_FLAG_FALSE,
+    // Operator controls, signed with the replica's own key
+    STAGES(Origin.CONTROL, Auth.SELF),
+    RELOAD_KEYS(Origin.CONTROL, Auth.SELF);
+
+    public enum Origin {
+        CLIENT,
+        PEER,
+        CONTROL
+    }
+
+    // Which key the request must be signed with
+    public enum Auth {
+        NONE,
+        OWN_KEY,     // the key carried in the request (handshakes)
+        USERNAME,    // the keystore certificate of the username being registered
+        REGISTERED,  // the keystore certificate of the user the key was registered as
+        REPLICA,     // the keystore certificate of the sending replica
+        SELF;        // the keystore certificate of this replica
+
+        // Everything past the handshakes must also carry the nonce the replica handed out
+        public boolean checksNonce() {
+            return this == USERNAME || this == REGISTERED || this == REPLICA;
+        }
+    }
+
+    private static final Map<String, Operation> BY_NAME = new HashMap<>();
+
+    static {
+        for(Operation operation : values()) {
+            BY_NAME.put(operation.name(), operation);
+        }
+    }
+
+    private final Origin origin;
+    private final Auth auth;
+    private final int[] earlyCodes;
+    private final int[] lateCodes;
+    private final boolean broadcast;
+    private final boolean answeredByListener;
+
+    Operation() {
+        this(Origin.CONTROL, Auth.NONE);
+    }
+
+    Operation(Origin origin, Auth auth) {
+        this(origin, auth, codes(), codes(), false, false);
+    }
+
+    Operation(Origin origin, Auth auth, int[] earlyCodes, int[] lateCodes, boolean broadcast, boolean answeredByListener) {
+        this.origin = origin;
+        this.auth = auth;
+        this.earlyCodes = earlyCodes;
+        this.lateCodes = lateCodes;
+        this.broadcast = broadcast;
+        this.answeredByListener = answeredByListener;
+    }
+
+    // Null for names no replica knows, those requests are ignored
+    public static Operation of(String name) {
+        return name == null ? null : BY_NAME.get(name);
+    }
+
+    public Origin getOrigin() {
+        return origin;
+    }
+
+    public Auth getAuth() {
+        return auth;
+    }
+
+    // Checked before the signature
+    public int[] getEarlyCodes() {
+        return earlyCodes;
+    }
+
+    // Checked once the request is authentic and fresh
+    public int[] getLateCodes() {
+        return lateCodes;
+    }
+
+    public boolean needsBroadcast() {
+        return broadcast;
+    }
+
+    // READ and READGENERAL are answered on the client's listener, so are their errors
+    public boolean isAnsweredByListener() {
+        return answeredByListener;
+    }
+
+    private static int[] codes(int... codes) {
+        return codes;
+    }
+}
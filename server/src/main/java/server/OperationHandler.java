@@ -0,0 +1,11 @@
+package server;
+
+import library.Connection;
+import library.Envelope;
+
+// Runs an operation once handle has checked everything its Operation declares
+public interface OperationHandler {
+
+    void handle(Envelope envelope, Connection outStream) throws Exception;
+
+}
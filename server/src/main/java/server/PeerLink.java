@@ -0,0 +1,253 @@
+package server;
+
+import library.Envelope;
+import library.Pair;
+import library.Request;
+import library.Response;
+import library.Session;
+import library.Signatures;
+import library.SocketConnection;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// A replica's long-lived link to one other replica, carrying its ECHO and READY messages. It opens with a SERVERNONCE
+// round trip and a signed LINK request that hands the peer a fresh key sealed with its RSA key (see library.Session).
+// Every message after that is one frame, MAC'd with the key and numbered in its nonce so the peer drops replays.
+// A thread of its own writes the queued messages in order, so a slow peer only holds up its own queue.
+// Messages queued together go as one frame per operation, listing every (client, digest) they vouch for
+class PeerLink implements Runnable {
+
+    static final String PROPOSALS = "proposals";
+
+    private static final int QUEUE = Integer.getInteger("dpas.server.peer.queue", 1024);
+    // At most this many ECHOs or READYs per frame (-Ddpas.server.batch.size), and how long the link may wait for
+    // more once it is busy (-Ddpas.server.batch.window, milliseconds)
+    private static final int BATCH = Math.max(1, Integer.getInteger("dpas.server.batch.size", 64));
+    private static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dpas.server.batch.window", 2L));
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+
+    private final CryptoManager cryptoManager;
+    private final int port;
+    private final int peerPort;
+    private final int peerOffset;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>(QUEUE);
+    private final Thread sender;
+
+    // Owned by the sender thread
+    private SocketConnection connection;
+    private Session session;
+    private long sequence;
+    private int lastBatch = 1;
+
+    PeerLink(CryptoManager cryptoManager, int port, int peerPort, int peerOffset) {
+        this.cryptoManager = cryptoManager;
+        this.port = port;
+        this.peerPort = peerPort;
+        this.peerOffset = peerOffset;
+        sender = new Thread(this, "link-" + port + "-" + peerPort);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // The broadcast tolerates a lost message like it tolerates a faulty replica, so a full queue drops instead of blocking
+    void send(Request request) {
+        if(!queue.offer(request)) {
+            System.out.println("SERVER ON PORT " + port + ": LINK TO " + peerPort + " FULL, DROPPED " + request.getOperation());
+        }
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            List<Request> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            collect(batch);
+            for(List<Request> group : byOperation(batch).values()) {
+                deliver(group.size() == 1 ? group.get(0) : bundle(group, port));
+            }
+        }
+        disconnect();
+    }
+
+    // Takes whatever else is queued. The link then waits for more in proportion to how full its last batch was:
+    // a quiet link sends every message at once, a busy one trades up to WINDOW of latency for fuller frames
+    private void collect(List<Request> batch) {
+        queue.drainTo(batch, BATCH - batch.size());
+        long linger = BATCH > 1 ? WINDOW * (lastBatch - 1) / (BATCH - 1) : 0;
+        long deadline = System.nanoTime() + linger;
+        long remaining;
+        while(batch.size() < BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+            Request next;
+            try {
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                // Send what was taken, the next take() ends the thread
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if(next == null) {
+                break;
+            }
+            batch.add(next);
+            queue.drainTo(batch, BATCH - batch.size());
+        }
+        lastBatch = batch.size();
+    }
+
+    private static Map<String, List<Request>> byOperation(List<Request> batch) {
+        Map<String, List<Request>> groups = new LinkedHashMap<>();
+        for(Request request : batch) {
+            List<Request> group = groups.get(request.getOperation());
+            if(group == null) {
+                group = new ArrayList<>();
+                groups.put(request.getOperation(), group);
+            }
+            group.add(request);
+        }
+        return groups;
+    }
+
+    // One ECHO or READY for several client requests, each named by its client and digest like a single one is
+    @SuppressWarnings("unchecked")
+    static Request bundle(List<Request> group, int port) {
+        JSONArray proposals = new JSONArray();
+        for(Request request : group) {
+            JSONArray proposal = new JSONArray();
+            proposal.add(request.getPublicKeyToReadFrom());
+            proposal.add(request.getDigest());
+            proposals.add(proposal);
+        }
+        JSONObject object = new JSONObject();
+        object.put(PROPOSALS, proposals);
+        Request first = group.get(0);
+        Request bundle = new Request(first.getOperation(), (PublicKey) null, null, first.getPublicKey(), null, port);
+        bundle.setJsonObject(object);
+        return bundle;
+    }
+
+    // Whether an ECHO/READY names what it vouches for: one client request by its digest, a whole request (replicas
+    // that predate digests) or a bundle. The entries of a bundle are checked one by one with isProposal
+    static boolean namesProposal(Request request) {
+        if(request.getJsonObject() != null) {
+            return request.getJsonObject().get(PROPOSALS) instanceof JSONArray;
+        }
+        if(request.getDigest() != null) {
+            return request.getPublicKeyToReadFrom() != null && request.getDigest().length == Signatures.DIGEST_BYTES;
+        }
+        return request.getEnvelope() != null && request.getEnvelope().getRequest() != null;
+    }
+
+    // A bundle entry: [client key, digest]
+    static boolean isProposal(Object entry) {
+        if(!(entry instanceof JSONArray) || ((JSONArray) entry).size() != 2) {
+            return false;
+        }
+        Object client = ((JSONArray) entry).get(0);
+        Object digest = ((JSONArray) entry).get(1);
+        return client instanceof PublicKey && digest instanceof byte[] && ((byte[]) digest).length == Signatures.DIGEST_BYTES;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Pair<PublicKey, byte[]> proposal(Object entry) {
+        List<Object> pair = (List<Object>) entry;
+        return new Pair<>((PublicKey) pair.get(0), (byte[]) pair.get(1));
+    }
+
+    void close() {
+        sender.interrupt();
+    }
+
+    // A link the peer closed (e.g. it restarted) fails on the next write, the message then goes again on a new one
+    private void deliver(Request request) {
+        for(int attempt = 0; attempt < 2; attempt++) {
+            try {
+                if(connection == null) {
+                    connect();
+                }
+                request.setSession(session.getId());
+                request.setServerNonce(ByteBuffer.allocate(8).putLong(++sequence).array());
+                connection.send(new Envelope(request, cryptoManager.macRequest(request, session)));
+                return;
+            } catch (IOException | GeneralSecurityException | ClassNotFoundException e) {
+                disconnect();
+                if(attempt == 1) {
+                    System.out.println("SERVER ON PORT " + port + ": LINK TO " + peerPort + " FAILED, DROPPED " + request.getOperation());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void connect() throws IOException, GeneralSecurityException, ClassNotFoundException {
+        PublicKey serverKey = cryptoManager.getPublicKeyFromKs("server");
+        Session link = Session.generate();
+        byte[] clientNonce = new byte[16];
+        new SecureRandom().nextBytes(clientNonce);
+        Request request = new Request("LINK", (Envelope) null, serverKey, serverNonce(serverKey), port);
+        request.setClientNonce(clientNonce);
+        request.setSession(link.seal(cryptoManager.getPublicKeyFromKs("server" + peerPort)));
+        SocketConnection opened = new SocketConnection("localhost", peerPort + peerOffset);
+        try {
+            opened.setTimeout(HANDSHAKE_TIMEOUT);
+            opened.setKeepAlive(true);
+            opened.send(new Envelope(request, cryptoManager.signRequest(request)));
+            // The peer MACs its reply with the new key, which shows it could open it
+            Envelope reply = opened.receive();
+            Response response = reply.getResponse();
+            if(response == null || !response.getSuccess() || !Arrays.equals(response.getNonce(), clientNonce) ||
+                    !link.hasId(response.getSession()) || !cryptoManager.verifyResponse(response, reply.getSignature(), link)) {
+                throw new GeneralSecurityException("Replica " + peerPort + " did not open the link");
+            }
+        } catch (IOException | GeneralSecurityException | ClassNotFoundException e) {
+            opened.close();
+            throw e;
+        }
+        connection = opened;
+        session = link;
+        sequence = 0;
+    }
+
+    // The LINK request is fresh like any other replica request, so an old one can't be replayed to reset the link
+    private byte[] serverNonce(PublicKey serverKey) throws IOException, GeneralSecurityException, ClassNotFoundException {
+        try(SocketConnection nonceConnection = new SocketConnection("localhost", peerPort + peerOffset)) {
+            nonceConnection.setTimeout(HANDSHAKE_TIMEOUT);
+            Request request = new Request("SERVERNONCE", serverKey);
+            nonceConnection.send(new Envelope(request, cryptoManager.signRequest(request)));
+            Envelope reply = nonceConnection.receive();
+            if(reply.getResponse() == null || !cryptoManager.verifyResponse(reply.getResponse(), reply.getSignature(), "server" + peerPort)) {
+                throw new GeneralSecurityException("Replica " + peerPort + " sent an invalid nonce");
+            }
+            return reply.getResponse().getNonce();
+        }
+    }
+
+    private void disconnect() {
+        if(connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        connection = null;
+        session = null;
+    }
+}
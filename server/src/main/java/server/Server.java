@@ -2,10 +2,19 @@ package server;
 
 import exceptions.IntegrityException;
 import exceptions.NonceTimeoutException;
+import library.Connection;
 import library.Envelope;
+import library.FrameCodec;
+import library.FrameHandler;
+import library.FrameServer;
 import library.Pair;
+import library.ReplayWindow;
 import library.Request;
 import library.Response;
+import library.Session;
+import library.Signatures;
+import library.SocketConnection;
+import library.TaggedConnection;
 
 import org.apache.commons.io.FileUtils;
 
@@ -14,24 +23,75 @@ import org.json.simple.JSONObject;
 
 import java.io.*;
 import java.lang.management.ManagementFactory;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.security.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class Server implements Runnable {
+public class Server implements FrameHandler {
 	
 	private int nServers = 4;
 	private int nFaults = 1;
 	private int nQuorum = 2;
 	private static final int PORT = 9000;
-	private static final int TIMEOUT_WHILE = 100; // 50 * this
-    private ServerSocket server;
+	// How long a request waits for its broadcast to be delivered before it is given up (-Ddpas.server.delivery.timeout)
+	private static final long DELIVERY_TIMEOUT = Long.getLong("dpas.server.delivery.timeout", 5000L);
+	// Broadcasts are kept this long after their last ECHO/READY (-Ddpas.server.broadcast.retention), and looked
+	// for once a client has this many
+	private static final long BROADCAST_RETENTION = Long.getLong("dpas.server.broadcast.retention", 60000L);
+	private static final int BROADCAST_SWEEP = 64;
+	// Apply stage threads and the queue depth of every stage (-Ddpas.server.workers / -Ddpas.server.queue)
+	private static final int WORKERS = Integer.getInteger("dpas.server.workers", 64);
+	private static final int QUEUE_DEPTH = Integer.getInteger("dpas.server.queue", 256);
+	// CPU bound stages default to one thread per core (-Ddpas.server.decode / verify / respond)
+	private static final int CORES = Runtime.getRuntime().availableProcessors();
+	private static final int DECODE_THREADS = Integer.getInteger("dpas.server.decode", CORES);
+	private static final int VERIFY_THREADS = Integer.getInteger("dpas.server.verify", CORES);
+	private static final int RESPOND_THREADS = Integer.getInteger("dpas.server.respond", CORES);
+	// ECHO/READY sends to the other replicas (-Ddpas.server.broadcast), only used with -Ddpas.server.mesh=false
+	private static final int BROADCAST_THREADS = Integer.getInteger("dpas.server.broadcast", 16);
+	// ECHO/READY go over one long-lived MAC'd link per peer (see PeerLink), instead of a new connection,
+	// a SERVERNONCE round trip and a signature per message (-Ddpas.server.mesh=false)
+	private static final boolean MESH = !"false".equalsIgnoreCase(System.getProperty("dpas.server.mesh"));
+	// Replica to replica traffic (SERVERNONCE, LINK, ECHO, READY) arrives on port + PEER_OFFSET and runs on
+	// threads of its own, so client load cannot hold back the quorums clients wait for (-Ddpas.server.peer.threads)
+	private static final int PEER_OFFSET = 100;
+	private static final int PEER_THREADS = Integer.getInteger("dpas.server.peer.threads", 8);
+	// Client admission: requests per second and burst per public key, requests in flight per replica
+	// (-Ddpas.server.rate / -Ddpas.server.burst / -Ddpas.server.inflight)
+	private static final int RATE = Integer.getInteger("dpas.server.rate", 50);
+	private static final int BURST = Integer.getInteger("dpas.server.burst", 100);
+	private static final int IN_FLIGHT = Integer.getInteger("dpas.server.inflight", 256);
+	// Files written by the persistence stage
+	private static final int USER_ID_MAP = 1;
+	private static final int USERS_BOARDS = 2;
+	private static final int GENERAL_BOARD = 4;
+	private static final int TOTAL_ANNOUNCEMENTS = 8;
+	private static final int SEQUENCES = 16;
+	// Selector threads reading and writing frames (-Ddpas.server.loops)
+	private static final int EVENT_LOOPS = Integer.getInteger("dpas.server.loops", 2);
+    private ServerSocketChannel serverChannel;
+    private FrameServer server;
+    private FrameServer peerServer;
+    // Request pipeline: decode -> verify -> apply, with broadcast, persist and respond next to apply
+    private Stage decodeStage;
+    private Stage verifyStage;
+    private Stage applyStage;
+    private Stage broadcastStage;
+    private PeerLink[] peerLinks;
+    private Stage respondStage;
+    private Stage peerStage;
+    private GroupCommit persistStage;
+    private Admission admission;
+    private final EnumMap<Operation, OperationHandler> handlers = new EnumMap<>(Operation.class);
     private String serverPort;
     private ConcurrentHashMap<PublicKey, String> userIdMap = null;
     private AtomicInteger totalAnnouncements;
@@ -47,6 +107,8 @@ public class Server implements Runnable {
     private String announcementBoardsPathCopy = "";
     private String generalBoardPath = "";
     private String generalBoardPathCopy = "";
+    private String sequencesPath = "";
+    private String sequencesPathCopy = "";
 
     /********** Simulated Attacks Variables ***********/
     
@@ -63,11 +125,11 @@ public class Server implements Runnable {
     /**************************************************/
 
     /******************** AUTHENTICATED DOUBLE ECHO VARIABLES ******/
-    private ConcurrentHashMap<PublicKey, Boolean> sentEcho;
-    private ConcurrentHashMap<PublicKey, Boolean> sentReady;
-    private ConcurrentHashMap<PublicKey, Boolean> delivered;
-    private ConcurrentHashMap<PublicKey, ConcurrentHashMap<PublicKey, Envelope>> echos;
-    private ConcurrentHashMap<PublicKey, ConcurrentHashMap<PublicKey, Envelope>> readys;
+    // Each client's broadcasts by the digest of the message (Signatures.digest), so a client can have many in flight
+    // and a late ECHO/READY only counts towards the message it was sent for
+    private ConcurrentHashMap<PublicKey, ConcurrentHashMap<ByteBuffer, Broadcast>> broadcasts;
+    // Every client's broadcasts are looked over at most once per BROADCAST_RETENTION, clients left with none are dropped
+    private final AtomicLong lastBroadcastSweep = new AtomicLong(System.currentTimeMillis());
     
     /********************** Regular Register **********************/
 
@@ -81,9 +143,9 @@ public class Server implements Runnable {
     /**************************************************************/
 
 
-    protected Server(ServerSocket ss, int port) {
+    protected Server(ServerSocketChannel channel, int port) {
 
-        server = ss;
+        serverChannel = channel;
         serverPort = port + "";  //adding "" converts int to string
 
         cryptoManager = new CryptoManager(port);
@@ -100,6 +162,8 @@ public class Server implements Runnable {
         announcementBoardsPathCopy = storagePath + "AnnouncementBoards_copy.ser";
         generalBoardPath           = storagePath + "GeneralBoard.ser";
         generalBoardPathCopy	   = storagePath + "GeneralBoard_copy.ser";
+        sequencesPath              = storagePath + "Sequences.ser";
+        sequencesPathCopy          = storagePath + "Sequences_copy.ser";
 
         File storage = new File(storagePath);
         storage.mkdirs();
@@ -110,16 +174,20 @@ public class Server implements Runnable {
 
         listening = new ConcurrentHashMap<PublicKey, ConcurrentHashMap<PublicKey, Pair<Integer, Integer>>>();
 
-        sentEcho = new ConcurrentHashMap<>();
-        sentReady = new ConcurrentHashMap<>();
-        delivered = new ConcurrentHashMap<>();
-        echos = new ConcurrentHashMap<>();
-        readys = new ConcurrentHashMap<>();
+        broadcasts = new ConcurrentHashMap<>();
 
         getUserIdMap();
 
         getTotalAnnouncementsFromFile();
+
+        getSequences();
         
+        registerHandlers();
+
+        newStages();
+
+        newLinks();
+
         System.out.println("SERVER ON PORT " + this.serverPort + ": Up and running.");
 
         newListener();
@@ -131,192 +199,39 @@ public class Server implements Runnable {
 //         Main method running
 //
 //////////////////////////////////////////
-    @SuppressWarnings("all")
-    public void run() {
 
-        Socket socket = null;
-        ObjectOutputStream outStream;
-        ObjectInputStream inStream;
-
-        try {
-            socket = server.accept();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    // Called by the event loops for every frame: the request then moves through the pipeline stages
+    @Override
+    public void onFrame(Connection connection, byte[] frame) {
+        decodeStage.execute(new RequestTask(connection, frame));
+    }
 
-        newListener();
+    @SuppressWarnings("all")
+    private void handle(Connection outStream, RequestTask task) {
 
         try {
-            inStream = new ObjectInputStream(socket.getInputStream());
-            outStream = new ObjectOutputStream(socket.getOutputStream());
             try {
-                Envelope envelope = (Envelope) inStream.readObject();
-                switch(envelope.getRequest().getOperation()) {
-                    case "REGISTER":
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7}, null) &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(envelope.getRequest().getUsername())) &&
-                            	cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()) &&
-                            	checkExceptions(envelope.getRequest(), outStream, new int[] {-2}, null) && checkDelivered(envelope))
-                        {
-                            register(envelope.getRequest(), outStream);
-                        }
-                        break;
-                    case "POST":
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7, -1}, null) &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(userIdMap.get(envelope.getRequest().getPublicKey()))) &&
-                            	cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()) &&
-                            	checkExceptions(envelope.getRequest(), outStream, new int[] {-4, -5}, null) && checkDelivered(envelope))
-                        {
-                            write(envelope.getRequest(), outStream);
-                        }
-                        break;
-                    case "POSTGENERAL":
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7, -1}, null) &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(userIdMap.get(envelope.getRequest().getPublicKey()))) &&
-                        		cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()) &&
-                        		checkExceptions(envelope.getRequest(), outStream, new int[] {-4, -5}, null) && checkDelivered(envelope))
-                        {
-                        	writeGeneral(envelope.getRequest(), outStream);
-                        }
-                        break;
-                    case "READ":
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7, -1}, "READ") &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(userIdMap.get(envelope.getRequest().getPublicKey()))) &&
-                                cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()) &&
-                                checkExceptions(envelope.getRequest(), outStream, new int[] {-3, -10, -6}, "READ") && checkDelivered(envelope))
-                        {
-                            read(envelope.getRequest(), outStream);
-                        }
-                        break;
-                    case "READGENERAL":
-                        checkDelivered(envelope);
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7, -1}, "READGENERAL") &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(userIdMap.get(envelope.getRequest().getPublicKey()))) &&
-                        		cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()) &&
-                        		checkExceptions(envelope.getRequest(), outStream, new int[] {-6, -10}, "READGENERAL") && checkDelivered(envelope))
-                        {
-                            readGeneral(envelope.getRequest());
-                        }
-                        break;
-                    case "READCOMPLETE":
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7, -1}, null) &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(userIdMap.get(envelope.getRequest().getPublicKey()))) &&
-                        		cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()) &&
-                        		checkExceptions(envelope.getRequest(), outStream, new int[] {-3}, null))
-                        {
-                            readComplete(envelope.getRequest());
-                        }
-                        break;
-                    case "NONCE":
-                    	if(cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), envelope.getRequest().getPublicKey())) {
-                    		handshake = true;
-	                        cryptoManager.generateRandomNonce(envelope.getRequest().getPublicKey());
-	                        if(!dropNonceFlag) {
-	                        	sendResponse(new Response(cryptoManager.getServerNonce(envelope.getRequest().getPublicKey())), outStream, integrityFlag);
-	                        } else {
-	                        	System.out.println("SERVER ON PORT " + this.serverPort + ": DROPPED NONCE");
-	                        }
-	                        handshake = false;
-                    	}
-                        break;
-                    case "SERVERNONCE":
-                    	if(cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), envelope.getRequest().getPublicKey())) {
-                    		handshake = true;
-	                        cryptoManager.generateRandomNonce(envelope.getRequest().getPublicKey());
-	                        sendResponse(new Response(cryptoManager.getServerNonce(envelope.getRequest().getPublicKey())), outStream, false);
-	                        handshake = false;
-                    	}
-                        break;
-                    case "WTS":
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7, -1}, null) &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(userIdMap.get(envelope.getRequest().getPublicKey()))) &&
-                        		cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()))
-                        {
-                            wtsRequest(envelope.getRequest(), false,  outStream);
-                        }
-                    	break;
-                    case "WTSGENERAL":
-                        if(checkExceptions(envelope.getRequest(), outStream, new int[] {-7, -1}, null) &&
-                        		cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs(userIdMap.get(envelope.getRequest().getPublicKey()))) &&
-                        		cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()))
-                        {
-                            wtsRequest(envelope.getRequest(), true, outStream);
-                        }
-                        break;
-                    case "ECHO":
-                        if(cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs("server" + envelope.getRequest().getPort())) &&
-                                   cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()))
-                        {
-                            checkEcho(envelope);
-                        }
-                        break;
-                    case "READY":
-                        if(cryptoManager.verifyRequest(envelope.getRequest(), envelope.getSignature(), cryptoManager.getPublicKeyFromKs("server" + envelope.getRequest().getPort())) &&
-                                   cryptoManager.checkNonce(envelope.getRequest().getPublicKey(), envelope.getRequest().getServerNonce()))
-                        {
-                            checkReady(envelope);
-                        }
-                        break;
-                    case "DELETEALL":
-                        deleteUsers(outStream);
-                        break;
-                    case "SHUTDOWN":
-                        shutDown();
-                        break;
-                    case "REPLAY_FLAG_TRUE":
-                    	replayFlag = true;
-                    	outStream.writeObject(new Envelope(new Request("REPLAY_ACK")));
-                        break;
-                    case "REPLAY_FLAG_FALSE":
-                    	replayFlag = false;
-                    	outStream.writeObject(new Envelope(new Request("REPLAY_ACK")));
-                        break;
-                    case "INTEGRITY_FLAG_TRUE":
-                        integrityFlag = true;
-                        outStream.writeObject(new Envelope(new Request("INTEGRITY_ACK")));
-                        break;
-                    case "INTEGRITY_FLAG_FALSE":
-                        integrityFlag = false;
-                        outStream.writeObject(new Envelope(new Request("INTEGRITY_ACK")));
-                        break;
-                    case "DROP_NONCE_FLAG_TRUE":
-                        outStream.writeObject(new Envelope(new Request("DROP_NONCE_ACK")));
-                        dropNonceFlag = true;
-                    	break;
-                    case "DROP_NONCE_FLAG_FALSE":
-                        outStream.writeObject(new Envelope(new Request("DROP_NONCE_ACK")));
-                        dropNonceFlag = false;
-                    	break;
-                    case "DROP_OPERATION_FLAG_TRUE":
-                        outStream.writeObject(new Envelope(new Request("DROP_OPERATION_ACK")));
-                        dropOperationFlag = true;
-                    	break;
-                    case "DROP_OPERATION_FLAG_FALSE":
-                        outStream.writeObject(new Envelope(new Request("DROP_OPERATION_ACK")));
-                        dropOperationFlag = false;
-                    	break;
-                    case "ATOMIC_WRITE_FLAG_TRUE":
-                        outStream.writeObject(new Envelope(new Request("ATOMIC_WRITE_ACK")));
-                        atomicWriteFlag = true;
-                        break;
-                    case "ATOMIC_WRITE_FLAG_FALSE":
-                        outStream.writeObject(new Envelope(new Request("ATOMIC_WRITE_ACK")));
-                        atomicWriteFlag = false;
-                        break;
-                    case "CONCURRENT_WRITE_FLAG_TRUE":
-                        concurrentWrite = true;
-                        outStream.writeObject(new Envelope(new Request("CONCURRENT_WRITE_ACK")));
-                        break;
-                    case "CONCURRENT_WRITE_FLAG_FALSE":
-                        outStream.writeObject(new Envelope(new Request("CONCURRENT_WRITE_ACK")));
-                        concurrentWrite = false;
-                        break;
-                    default:
-                        break;
+                Envelope envelope = task.envelope;
+                // Pipelined requests are answered under their own id and may finish in any order
+                if(envelope.getRequestId() != 0) {
+                    outStream = new TaggedConnection(outStream, envelope.getRequestId());
                 }
-                socket.close();
+                // Names no replica knows are ignored
+                Operation operation = task.operation;
+                if(operation != null && accepts(operation, envelope, outStream, task)) {
+                    // Replies to a request authenticated with a session are MAC'd with it
+                    if(task.session != null) {
+                        outStream = new SessionConnection(outStream, task.session);
+                    }
+                    handlers.get(operation).handle(envelope, outStream);
+                }
+                // The link stays open: clients reuse it for their next request
             } catch (Exception e) {
                 e.printStackTrace();
+                // Other requests may still be in flight on a pipelined link
+                if(!(outStream instanceof TaggedConnection)) {
+                    outStream.close();
+                }
             }
         }catch (Exception e) {
             e.printStackTrace();
@@ -324,178 +239,356 @@ public class Server implements Runnable {
     }
 
 
-    private void checkReady(Envelope envelope){
-        synchronized (readys){
-            if(readys.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()) == null){
-                readys.put(envelope.getRequest().getEnvelope().getRequest().getPublicKey(), new ConcurrentHashMap<>());
-                readys.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()).put(envelope.getRequest().getPublicKey(), envelope.getRequest().getEnvelope());
-            }
-            else{
-                readys.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()).put(envelope.getRequest().getPublicKey(), envelope.getRequest().getEnvelope());
+    // The checks an operation declares, in the order they always ran: early error codes, session, signature or MAC,
+    // nonce, late error codes and the reliable broadcast
+    private boolean accepts(Operation operation, Envelope envelope, Connection outStream, RequestTask task) {
+        Request request = envelope.getRequest();
+        String errorOperation = operation.isAnsweredByListener() ? operation.name() : null;
+        return checkCodes(request, outStream, operation.getEarlyCodes(), errorOperation) &&
+                checkSession(operation, request, outStream) &&
+                (operation.getAuth() == Operation.Auth.NONE || task.authenticate()) &&
+                (!operation.getAuth().checksNonce() || fresh(operation, request, task)) &&
+                checkCodes(request, outStream, operation.getLateCodes(), errorOperation) &&
+                (!operation.needsBroadcast() || checkDelivered(envelope));
+    }
+
+    // Messages on a peer link are numbered in their nonce, and so are client requests sent with
+    // dpas.client.freshness=counter. Everything else carries a nonce this replica handed out
+    private boolean fresh(Operation operation, Request request, RequestTask task) {
+        byte[] nonce = request.getServerNonce();
+        if(task.session != null && operation.getOrigin() == Operation.Origin.PEER) {
+            return CryptoManager.isSequence(nonce) && task.session.acceptSequence(ByteBuffer.wrap(nonce).getLong());
+        }
+        if(operation.getOrigin() == Operation.Origin.CLIENT && CryptoManager.isSequence(nonce)) {
+            if(!cryptoManager.checkSequence(request.getPublicKey(), nonce)) {
+                System.out.println("SERVER ON PORT " + this.serverPort + ": REPLAYED SEQUENCE NUMBER");
+                return false;
             }
+            // Saved before the request takes effect, a replay after a restart is then still refused. Requests that
+            // arrive together share one write of the table
+            persistStage.commit(SEQUENCES);
+            return true;
         }
+        return cryptoManager.checkNonce(request.getPublicKey(), nonce);
+    }
 
-        HashMap<String, Integer> counter = new HashMap<>();
+    private boolean checkCodes(Request request, Connection outStream, int[] codes, String operationType) {
+        return codes.length == 0 || checkExceptions(request, outStream, codes, operationType);
+    }
 
-        for(Envelope entry: readys.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()).values()){
-            if(counter.containsKey(entry.toString())){
-                counter.put(entry.toString(), counter.get(entry.toString()) + 1);
-                if(counter.get(entry.toString()) > 2 * nFaults && (delivered.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()) == null ||
-                                                                       !delivered.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()))){
-                    delivered.put(envelope.getRequest().getEnvelope().getRequest().getPublicKey(), true);
-                    sentEcho.remove(entry.getRequest().getPublicKey());
-                    sentReady.remove(entry.getRequest().getPublicKey());
-                    echos.remove(entry.getRequest().getPublicKey());
-                    readys.remove(entry.getRequest().getPublicKey());
-                    break;
-                }
+    private void registerHandlers() {
+        handlers.put(Operation.REGISTER, (envelope, outStream) -> register(envelope.getRequest(), outStream));
+        handlers.put(Operation.POST, (envelope, outStream) -> write(envelope.getRequest(), outStream));
+        handlers.put(Operation.POSTGENERAL, (envelope, outStream) -> writeGeneral(envelope.getRequest(), outStream));
+        handlers.put(Operation.READ, (envelope, outStream) -> read(envelope.getRequest(), outStream));
+        handlers.put(Operation.READGENERAL, (envelope, outStream) -> readGeneral(envelope.getRequest()));
+        handlers.put(Operation.READCOMPLETE, (envelope, outStream) -> readComplete(envelope.getRequest()));
+        handlers.put(Operation.WTS, (envelope, outStream) -> wtsRequest(envelope.getRequest(), false, outStream));
+        handlers.put(Operation.WTSGENERAL, (envelope, outStream) -> wtsRequest(envelope.getRequest(), true, outStream));
+        handlers.put(Operation.NONCE, (envelope, outStream) -> nonce(envelope.getRequest(), outStream));
+        handlers.put(Operation.SESSION, (envelope, outStream) -> session(envelope.getRequest(), outStream));
+        handlers.put(Operation.SERVERNONCE, (envelope, outStream) -> serverNonce(envelope.getRequest(), outStream));
+        handlers.put(Operation.LINK, (envelope, outStream) -> link(envelope.getRequest(), outStream));
+        handlers.put(Operation.ECHO, (envelope, outStream) -> checkEcho(envelope));
+        handlers.put(Operation.READY, (envelope, outStream) -> checkReady(envelope));
+        handlers.put(Operation.DELETEALL, (envelope, outStream) -> deleteUsers(outStream));
+        handlers.put(Operation.SHUTDOWN, (envelope, outStream) -> shutDown());
+        handlers.put(Operation.REPLAY_FLAG_TRUE, (envelope, outStream) -> {
+            replayFlag = true;
+            outStream.send(new Envelope(new Request("REPLAY_ACK")));
+        });
+        handlers.put(Operation.REPLAY_FLAG_FALSE, (envelope, outStream) -> {
+            replayFlag = false;
+            outStream.send(new Envelope(new Request("REPLAY_ACK")));
+        });
+        handlers.put(Operation.INTEGRITY_FLAG_TRUE, (envelope, outStream) -> {
+            integrityFlag = true;
+            outStream.send(new Envelope(new Request("INTEGRITY_ACK")));
+        });
+        handlers.put(Operation.INTEGRITY_FLAG_FALSE, (envelope, outStream) -> {
+            integrityFlag = false;
+            outStream.send(new Envelope(new Request("INTEGRITY_ACK")));
+        });
+        handlers.put(Operation.DROP_NONCE_FLAG_TRUE, (envelope, outStream) -> {
+            outStream.send(new Envelope(new Request("DROP_NONCE_ACK")));
+            dropNonceFlag = true;
+        });
+        handlers.put(Operation.DROP_NONCE_FLAG_FALSE, (envelope, outStream) -> {
+            outStream.send(new Envelope(new Request("DROP_NONCE_ACK")));
+            dropNonceFlag = false;
+        });
+        handlers.put(Operation.DROP_OPERATION_FLAG_TRUE, (envelope, outStream) -> {
+            outStream.send(new Envelope(new Request("DROP_OPERATION_ACK")));
+            dropOperationFlag = true;
+        });
+        handlers.put(Operation.DROP_OPERATION_FLAG_FALSE, (envelope, outStream) -> {
+            outStream.send(new Envelope(new Request("DROP_OPERATION_ACK")));
+            dropOperationFlag = false;
+        });
+        handlers.put(Operation.ATOMIC_WRITE_FLAG_TRUE, (envelope, outStream) -> {
+            outStream.send(new Envelope(new Request("ATOMIC_WRITE_ACK")));
+            atomicWriteFlag = true;
+        });
+        handlers.put(Operation.ATOMIC_WRITE_FLAG_FALSE, (envelope, outStream) -> {
+            outStream.send(new Envelope(new Request("ATOMIC_WRITE_ACK")));
+            atomicWriteFlag = false;
+        });
+        handlers.put(Operation.CONCURRENT_WRITE_FLAG_TRUE, (envelope, outStream) -> {
+            concurrentWrite = true;
+            outStream.send(new Envelope(new Request("CONCURRENT_WRITE_ACK")));
+        });
+        handlers.put(Operation.CONCURRENT_WRITE_FLAG_FALSE, (envelope, outStream) -> {
+            outStream.send(new Envelope(new Request("CONCURRENT_WRITE_ACK")));
+            concurrentWrite = false;
+        });
+        handlers.put(Operation.STAGES, (envelope, outStream) ->
+                outStream.send(new Envelope(new Request("STAGES_ACK", 0, 0, null, stageStats(), null))));
+        // Keys are read once at startup, this picks up a keystore changed since
+        handlers.put(Operation.RELOAD_KEYS, (envelope, outStream) -> {
+            cryptoManager.reload();
+            outStream.send(new Envelope(new Request("RELOAD_KEYS_ACK")));
+        });
+    }
 
-                else if(counter.get(entry.toString()) > nFaults && (sentReady.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()) == null)){
-                    sentReady.put(envelope.getRequest().getEnvelope().getRequest().getPublicKey(), true);
-                    broadcastReady(entry);
+    private void nonce(Request request, Connection outStream) {
+        handshake = true;
+        cryptoManager.generateRandomNonce(request.getPublicKey());
+        if(!dropNonceFlag) {
+            sendResponse(new Response(cryptoManager.getServerNonce(request.getPublicKey())), outStream, integrityFlag);
+        } else {
+            System.out.println("SERVER ON PORT " + this.serverPort + ": DROPPED NONCE");
+        }
+        handshake = false;
+    }
 
-                }
-            }
-            else{
-                counter.put(entry.toString(), 1);
-            }
+    // The reply is MAC'd with the new session, which tells the client this replica could open its key
+    private void session(Request request, Connection outStream) {
+        Session session = cryptoManager.openSession(request.getPublicKey(), request.getSession());
+        if(session == null) {
+            sendResponse(new Response(false, -16, request.getClientNonce(), cryptoManager.getPublicKeyFromKs("server"), request.getOperation()), outStream, false);
+            return;
+        }
+        sendResponse(new Response(true, request.getClientNonce(), cryptoManager.getPublicKeyFromKs("server")), new SessionConnection(outStream, session), integrityFlag);
+    }
+
+    private void serverNonce(Request request, Connection outStream) {
+        handshake = true;
+        cryptoManager.generateRandomNonce(request.getPublicKey());
+        // Replied inline so peer handshakes never wait behind client replies
+        respond(new Response(cryptoManager.getServerNonce(request.getPublicKey())), outStream, false, replayFlag && !handshake);
+        handshake = false;
+    }
 
+    // Another replica opening its link to this one. The reply is MAC'd with the new key, like a SESSION reply
+    private void link(Request request, Connection outStream) {
+        Session link = cryptoManager.openLink(request.getPort(), request.getSession());
+        if(link != null) {
+            System.out.println("SERVER ON PORT " + this.serverPort + ": LINK FROM " + request.getPort());
+            respond(new Response(true, request.getClientNonce(), cryptoManager.getPublicKeyFromKs("server")), new SessionConnection(outStream, link), false, false);
         }
+    }
 
+    private void checkReady(Envelope envelope) throws IOException {
+        Request ready = envelope.getRequest();
+        PublicKey replica = replicaOf(ready);
+        for(Pair<PublicKey, byte[]> proposal : proposalsOf(ready)) {
+            checkReady(replica, proposal.getFirst(), proposal.getSecond());
+        }
     }
 
-    private void checkEcho(Envelope envelope){
-        if(echos.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()) == null){
-            echos.put(envelope.getRequest().getEnvelope().getRequest().getPublicKey(), new ConcurrentHashMap<>());
-            echos.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()).put(envelope.getRequest().getPublicKey(), envelope.getRequest().getEnvelope());
+    private void checkReady(PublicKey replica, PublicKey client, byte[] digest) throws IOException {
+        Broadcast broadcast = broadcast(client, digest);
+        int readies = broadcast.ready(replica);
+
+        if(readies > nFaults && broadcast.startReady()){
+            broadcastReady(client, digest);
         }
-        else{
-            echos.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()).put(envelope.getRequest().getPublicKey(), envelope.getRequest().getEnvelope());
+        if(readies > 2 * nFaults){
+            broadcast.deliver();
         }
+    }
 
-        HashMap<String, Integer> counter = new HashMap<>();
+    private void checkEcho(Envelope envelope) throws IOException {
+        Request echo = envelope.getRequest();
+        PublicKey replica = replicaOf(echo);
+        for(Pair<PublicKey, byte[]> proposal : proposalsOf(echo)) {
+            checkEcho(replica, proposal.getFirst(), proposal.getSecond());
+        }
+    }
 
-        for(Envelope entry: echos.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()).values()){
-            if(counter.containsKey(entry.toString())){
-                counter.put(entry.toString(), counter.get(entry.toString()) + 1);
-                if(counter.get(entry.toString()) > nQuorum && (sentReady.get(envelope.getRequest().getEnvelope().getRequest().getPublicKey()) == null )){
-                    sentReady.put(envelope.getRequest().getEnvelope().getRequest().getPublicKey(), true);
-                    broadcastReady(entry);
-                }
-            }
-            else{
-                counter.put(entry.toString(), 1);
-            }
+    // The replica an ECHO/READY is counted for: the certificate its signature or link was checked against, not
+    // the key the message claims to come from. This replica's own is its "server" certificate
+    private PublicKey replicaOf(Request request) throws IOException {
+        String alias = request.getPort() == Integer.parseInt(serverPort) ? "server" : "server" + request.getPort();
+        PublicKey replica = cryptoManager.getPublicKeyFromKs(alias);
+        if(replica == null) {
+            throw new IOException("No certificate for replica " + request.getPort());
+        }
+        return replica;
+    }
 
+    private void checkEcho(PublicKey replica, PublicKey client, byte[] digest) throws IOException {
+        Broadcast broadcast = broadcast(client, digest);
+
+        if(broadcast.echo(replica) > nQuorum && broadcast.startReady()){
+            broadcastReady(client, digest);
+        }
+    }
+
+    // The client requests an ECHO/READY vouches for: the one it names, or every one listed in a PeerLink bundle.
+    // Messages that name none were refused with -17. Entries that are not a (client, digest) pair are skipped, the
+    // rest of the bundle still counts
+    private List<Pair<PublicKey, byte[]>> proposalsOf(Request request) throws IOException {
+        List<Pair<PublicKey, byte[]>> proposals = new ArrayList<>();
+        JSONObject bundle = request.getJsonObject();
+        if(bundle == null) {
+            proposals.add(new Pair<>(clientOf(request), digestOf(request)));
+            return proposals;
+        }
+        for(Object entry : (JSONArray) bundle.get(PeerLink.PROPOSALS)) {
+            if(PeerLink.isProposal(entry)) {
+                proposals.add(PeerLink.proposal(entry));
+            } else {
+                System.out.println("SERVER ON PORT " + this.serverPort + ": MALFORMED PROPOSAL FROM " + request.getPort());
+            }
         }
+        return proposals;
+    }
 
+    // ECHO/READY name the client request by its digest, replicas that predate it send the whole request instead
+    private PublicKey clientOf(Request request) {
+        return request.getDigest() != null ? request.getPublicKeyToReadFrom() : request.getEnvelope().getRequest().getPublicKey();
+    }
+
+    private byte[] digestOf(Request request) throws IOException {
+        return request.getDigest() != null ? request.getDigest() : digest(request.getEnvelope().getRequest());
+    }
+
+    private byte[] digest(Request request) throws IOException {
+        try {
+            return Signatures.digest(request);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
 
+    // The run for this message of its client, started by whichever comes first: the client's request or an ECHO/READY
+    private Broadcast broadcast(PublicKey client, byte[] digest) {
+        ByteBuffer proposal = ByteBuffer.wrap(digest);
+        ConcurrentHashMap<ByteBuffer, Broadcast> runs = broadcasts.get(client);
+        Broadcast broadcast = runs == null ? null : runs.get(proposal);
+        if(broadcast != null) {
+            return broadcast;
+        }
+        sweepBroadcasts();
+        // Under the client's entry, so a sweep can't drop its map while a run is being added to it
+        Broadcast[] added = new Broadcast[1];
+        broadcasts.compute(client, (key, clientRuns) -> {
+            if(clientRuns == null) {
+                clientRuns = new ConcurrentHashMap<>();
+            } else if(clientRuns.size() >= BROADCAST_SWEEP) {
+                clientRuns.values().removeIf(run -> run.isIdle(BROADCAST_RETENTION));
+            }
+            added[0] = clientRuns.computeIfAbsent(proposal, p -> new Broadcast());
+            return clientRuns;
+        });
+        return added[0];
     }
 
-    private void broadcastReady(Envelope envelope){
-        Thread[] tasks = new Thread[nServers];
+    private void sweepBroadcasts() {
+        long last = lastBroadcastSweep.get();
+        long now = System.currentTimeMillis();
+        if(now - last < BROADCAST_RETENTION || !lastBroadcastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for(PublicKey client : broadcasts.keySet()) {
+            broadcasts.computeIfPresent(client, (key, clientRuns) -> {
+                clientRuns.values().removeIf(run -> run.isIdle(BROADCAST_RETENTION));
+                return clientRuns.isEmpty() ? null : clientRuns;
+            });
+        }
+    }
 
+    private void broadcastReady(PublicKey client, byte[] digest) throws IOException {
         int i = 0;
         while( i < nServers){
             if((PORT + i) == Integer.parseInt(serverPort)){
-                Request request = new Request("READY", envelope, cryptoManager.getPublicKeyFromKs("server"), null, Integer.parseInt(serverPort));
+                Request request = new Request("READY", client, digest, cryptoManager.getPublicKeyFromKs("server"), null, Integer.parseInt(serverPort));
                 checkReady(new Envelope(request));
             }
 
             else{
-                int finalI = i;
-                tasks[i] = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try(ObjectOutputStream outputStream = new ObjectOutputStream(new Socket("localhost", PORT + finalI).getOutputStream())) {
-                            byte[] nonce = startOneWayHandshakeServer(PORT + finalI);
-                            Request request = new Request("READY", envelope, cryptoManager.getPublicKeyFromKs("server"), nonce, Integer.parseInt(serverPort));
-                            sendRequest(request, outputStream, false, false);
-                        } catch (NonceTimeoutException e) {
-                            e.printStackTrace();
-                        } catch (IntegrityException e) {
-                            e.printStackTrace();
-                        } catch (UnknownHostException e) {
-                            e.printStackTrace();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
-                    }
-                });
-                tasks[i].start();
+                sendToPeer(i, "READY", client, digest);
             }
             i++;
         }
 
     }
 
-    private boolean checkDelivered(Envelope envelope) {
-        delivered.put(envelope.getRequest().getPublicKey(), false);
-        boolean break_flag = false;
+    // ECHO or READY to the replica i, on the link to it or, with -Ddpas.server.mesh=false or no link to it, on a
+    // connection of its own. They carry the digest of the client request, every replica that takes part got the
+    // request itself from the client
+    private void sendToPeer(int i, String operation, PublicKey client, byte[] digest) {
+        if(peerLinks[i] != null) {
+            peerLinks[i].send(new Request(operation, client, digest, cryptoManager.getPublicKeyFromKs("server"), null, Integer.parseInt(serverPort)));
+            return;
+        }
+        broadcastStage.execute(new Runnable() {
+            @Override
+            public void run() {
+                try(SocketConnection outputStream = new SocketConnection("localhost", PORT + PEER_OFFSET + i)) {
+                    byte[] nonce = startOneWayHandshakeServer(PORT + i);
+                    Request request = new Request(operation, client, digest, cryptoManager.getPublicKeyFromKs("server"), nonce, Integer.parseInt(serverPort));
+                    sendRequest(request, outputStream, false, false);
+                } catch (NonceTimeoutException e) {
+                    e.printStackTrace();
+                } catch (IntegrityException e) {
+                    e.printStackTrace();
+                } catch (UnknownHostException e) {
+                    e.printStackTrace();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
 
-        sentEcho.remove(envelope.getRequest().getPublicKey());
-        sentReady.remove(envelope.getRequest().getPublicKey());
-        echos.remove(envelope.getRequest().getPublicKey());
-        readys.remove(envelope.getRequest().getPublicKey());
-        
-        if(sentEcho.get(envelope.getRequest().getPublicKey()) == null) {
-            sentEcho.put(envelope.getRequest().getPublicKey(), true);
+            }
+        });
+    }
 
-            Thread[] tasks = new Thread[nServers];
+    private boolean checkDelivered(Envelope envelope) {
+        try {
+            return awaitDelivery(envelope);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private boolean awaitDelivery(Envelope envelope) throws IOException {
+        PublicKey client = envelope.getRequest().getPublicKey();
+        byte[] digest = digest(envelope.getRequest());
+        Broadcast broadcast = broadcast(client, digest);
+        // The same request sent again, or one the other replicas already agreed on before it got here
+        if(broadcast.isDelivered()) {
+            return true;
+        }
 
+        if(broadcast.startEcho()) {
             int i = 0;
             while (i < nServers) {
                 if ((PORT + i) == Integer.parseInt(serverPort)) {
-                    Request request = new Request("ECHO", envelope, cryptoManager.getPublicKeyFromKs("server"), null, Integer.parseInt(serverPort));
+                    Request request = new Request("ECHO", client, digest, cryptoManager.getPublicKeyFromKs("server"), null, Integer.parseInt(serverPort));
                     checkEcho(new Envelope(request));
                 } else {
-                    int finalI = i;
-                    tasks[i] = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            try (ObjectOutputStream outputStream = new ObjectOutputStream(new Socket("localhost", PORT + finalI).getOutputStream())) {
-                                byte[] nonce = startOneWayHandshakeServer(PORT + finalI);
-                                Request request = new Request("ECHO", envelope, cryptoManager.getPublicKeyFromKs("server"), nonce, Integer.parseInt(serverPort));
-                                sendRequest(request, outputStream, false, false);
-                            } catch (NonceTimeoutException e) {
-                                e.printStackTrace();
-                            } catch (IntegrityException e) {
-                                e.printStackTrace();
-                            } catch (UnknownHostException e) {
-                                e.printStackTrace();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-
-                        }
-                    });
-                    tasks[i].start();
+                    sendToPeer(i, "ECHO", client, digest);
                 }
                 i++;
             }
-            int timeout = 0;
-            while (!delivered.get(envelope.getRequest().getPublicKey())) {
-                try {
-                    Thread.sleep(50);
-                    timeout++;
-
-                    if (timeout == TIMEOUT_WHILE) {
-                        break_flag = true;
-                        break;
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+        }
 
-            delivered.remove(envelope.getRequest().getPublicKey());
-            if(break_flag){
-                return false;
-            }
-            else{
-                return true;
-            }
+        try {
+            return broadcast.await(DELIVERY_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
         return false;
     }
@@ -511,11 +604,11 @@ public class Server implements Runnable {
     //				    REGISTER
     //////////////////////////////////////////////////
     
-    public void register(Request request, ObjectOutputStream outStream) {
+    public void register(Request request, Connection outStream) {
         System.out.println("SERVER ON PORT " + this.serverPort + ": REGISTER METHOD");
         String username = cryptoManager.checkKey(request.getPublicKey());
         userIdMap.put(request.getPublicKey(), username);
-        saveUserIdMap();
+        persistStage.commit(USER_ID_MAP);
         usersBoards.put(request.getPublicKey(), new Pair<>(0, new AnnouncementBoard(request.getUsername())));
         if(!dropOperationFlag) {
             sendResponse(new Response(true, request.getClientNonce(), cryptoManager.getPublicKeyFromKs("server")), outStream, integrityFlag);
@@ -529,7 +622,7 @@ public class Server implements Runnable {
     //				      POST
     //////////////////////////////////////////////////
     @SuppressWarnings("unchecked")
-	private void write(Request request, ObjectOutputStream outStream) throws IntegrityException, NonceTimeoutException {
+	private void write(Request request, Connection outStream) throws IntegrityException, NonceTimeoutException {
     	System.out.println("SERVER ON PORT " + this.serverPort + ": WRITE METHOD");
         // Get userName from keystore
         if(request.getTs() > usersBoards.get(request.getPublicKey()).getFirst()) {  // if ts' > ts then (ts, val) := (ts', v')
@@ -557,10 +650,8 @@ public class Server implements Runnable {
                 announcementObject.put("ref_announcements", annoucementsList);
             }
             usersBoards.get(request.getPublicKey()).getSecond().addAnnouncement(announcementObject); //update val with the new post
-            saveUsersBoards();
-
             incrementTotalAnnouncs();
-            saveTotalAnnouncements();
+            persistStage.commit(USERS_BOARDS | TOTAL_ANNOUNCEMENTS);
 
         }
         if(listening.contains(request.getPublicKey())) { // no one is reading from who is writing
@@ -575,7 +666,7 @@ public class Server implements Runnable {
                 }
                 // -----> One way Handshake
                 int port = getClientPort(userIdMap.get(entry.getKey()));
-                try(ObjectOutputStream outputStream = new ObjectOutputStream(new Socket("localhost", port).getOutputStream())) {
+                try(SocketConnection outputStream = new SocketConnection("localhost", port)) {
                     int rid = entry.getValue().getFirst();
                     int number = entry.getValue().getSecond();
                     int ts = usersBoards.get(entry.getKey()).getFirst();
@@ -660,7 +751,7 @@ public class Server implements Runnable {
     }
     
     @SuppressWarnings("unchecked")
-	private void writeGeneral(Request request, ObjectOutputStream outStream) {
+	private void writeGeneral(Request request, Connection outStream) {
         System.out.println("SERVER ON PORT " + this.serverPort + ": WRITE GENERAL METHOD");
         if(request.getTs() >= generalBoard.getFirst()) {
 
@@ -706,10 +797,8 @@ public class Server implements Runnable {
                 generalBoard.getSecond().addAnnouncement(announcementObject, request.getSignature());
             }
 
-            saveGeneralBoard();
-
             incrementTotalAnnouncs();
-            saveTotalAnnouncements();
+            persistStage.commit(GENERAL_BOARD | TOTAL_ANNOUNCEMENTS);
 
         }
 
@@ -725,7 +814,7 @@ public class Server implements Runnable {
     //				      READ
     //////////////////////////////////////////////////
     @SuppressWarnings("unchecked")
-	private void read(Request request, ObjectOutputStream outStream) {
+	private void read(Request request, Connection outStream) {
 
         if(listening.contains(request.getPublicKeyToReadFrom())) {	//someone is already reading that board
             listening.get(request.getPublicKeyToReadFrom()).put(request.getPublicKey(), new Pair<Integer,Integer>(request.getRid(), request.getNumber()));  //listening [p] := r ;
@@ -748,7 +837,7 @@ public class Server implements Runnable {
 
         int total = request.getNumber();
 
-        try(ObjectOutputStream outputStream = new ObjectOutputStream(new Socket("localhost", getClientPort(userIdMap.get(request.getPublicKey()))).getOutputStream())) {
+        try(SocketConnection outputStream = new SocketConnection("localhost", getClientPort(userIdMap.get(request.getPublicKey())))) {
 
             JSONObject announcementsToSend = new JSONObject();
             announcementsToSend.put("announcementList", usersBoards.get(request.getPublicKeyToReadFrom()).getSecond().getAnnouncements(total));
@@ -791,7 +880,7 @@ public class Server implements Runnable {
             total = request.getNumber();
         }
         JSONObject announcementsToSend = generalBoard.getSecond().getAnnouncements(total);
-        try(ObjectOutputStream outputStream = new ObjectOutputStream(new Socket("localhost", getClientPort(userIdMap.get(request.getPublicKey()))).getOutputStream())) {
+        try(SocketConnection outputStream = new SocketConnection("localhost", getClientPort(userIdMap.get(request.getPublicKey())))) {
             if (!dropOperationFlag) {
                 byte[] nonce = startOneWayHandshake(userIdMap.get(request.getPublicKey()));
                 sendRequest(new Request("VALUEGENERAL", request.getRid(), generalBoard.getFirst(), nonce, announcementsToSend, cryptoManager.getPublicKeyFromKs("server")), outputStream, integrityFlag, replayFlag);
@@ -824,7 +913,7 @@ public class Server implements Runnable {
     //				   SEND WTS
     //////////////////////////////////////////////
     
-    private void wtsRequest(Request request, boolean isGeneral, ObjectOutputStream outStream) {
+    private void wtsRequest(Request request, boolean isGeneral, Connection outStream) {
     	int wts = 0;
     	if(isGeneral) {
             wts = generalBoard.getFirst();
@@ -852,10 +941,28 @@ public class Server implements Runnable {
         return true;
     }
 
-    private void sendResponse(Response response, ObjectOutputStream outputStream, boolean integrityHackingIHIH) {
+    // Signing runs on the respond stage, the attack flags are read now since they may change before it does
+    private void sendResponse(Response response, Connection outputStream, boolean integrityHackingIHIH) {
+        boolean replayHackingIHIH = replayFlag && !handshake;
+        respondStage.execute(new Runnable() {
+            @Override
+            public void run() {
+                respond(response, outputStream, integrityHackingIHIH, replayHackingIHIH);
+            }
+        });
+    }
+
+    private void respond(Response response, Connection outputStream, boolean integrityHackingIHIH, boolean replayHackingIHIH) {
         try {
-        	// Sign response
-            byte[] signature = cryptoManager.signResponse(response);
+        	// Sign response, or MAC it for a client on a session
+            Session session = outputStream instanceof SessionConnection ? ((SessionConnection) outputStream).getSession() : null;
+            byte[] signature;
+            if(session != null) {
+                response.setSession(session.getId());
+                signature = cryptoManager.macResponse(response, session);
+            } else {
+                signature = cryptoManager.signResponse(response);
+            }
             /***** SIMULATE ATTACKER: changing an attribute from the response will make it different from the hash] *****/
             if(integrityHackingIHIH) {
                 response.setSuccess(false);
@@ -863,25 +970,25 @@ public class Server implements Runnable {
             }
             /************************************************************************************************************/
             /***** SIMULATE ATTACKER: Replay attack by sending a replayed message from the past (this message is simulated)] *****/
-            if(replayFlag && !handshake) {
-                outputStream.writeObject(oldEnvelope);
+            if(replayHackingIHIH) {
+                outputStream.send(oldEnvelope);
             }
             /*********************************************************************************************************************/
             else {
-                outputStream.writeObject(new Envelope(response, signature));
+                outputStream.send(new Envelope(response, signature));
             }
         } catch (IOException e) {
             e.printStackTrace();
         } 
     }
 
-    private void sendRequest(Request request, ObjectOutputStream outputStream, boolean integrityHackingIHIH, boolean replayHackingIHIH){
+    private void sendRequest(Request request, Connection outputStream, boolean integrityHackingIHIH, boolean replayHackingIHIH){
         try {
             // Sign response
             byte[] signature = cryptoManager.signRequest(request);
             /***** SIMULATE ATTACKER: Replay attack by sending a replayed message from the past (this message is simulated)] *****/
             if(replayHackingIHIH && !handshake){
-                outputStream.writeObject(oldEnvelope);
+                outputStream.send(oldEnvelope);
             }
             /*********************************************************************************************************************/
             /***** SIMULATE ATTACKER: changing an attribute from the response will make it different from the hash] *****/
@@ -891,21 +998,21 @@ public class Server implements Runnable {
             }
             /************************************************************************************************************/
             else{
-                outputStream.writeObject(new Envelope(request, signature));
+                outputStream.send(new Envelope(request, signature));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private Envelope sendReceive(Request serverRequest, ObjectOutputStream outputStream, ObjectInputStream inputStream) {
+    private Envelope sendReceive(Request serverRequest, SocketConnection connection) {
         Envelope envelope = null;
         try {
         	// Sign request
             byte[] signature = cryptoManager.signRequest(serverRequest);
-            outputStream.writeObject(new Envelope(serverRequest, signature));
+            connection.send(new Envelope(serverRequest, signature));
             // exceptions de timeout e tal (nonce timeout)   FIXME -> falta adicionar as exceptions
-            return (Envelope) inputStream.readObject();
+            return connection.receive();
         } catch (IOException | 
                 ClassNotFoundException e) {
             e.printStackTrace();
@@ -915,7 +1022,299 @@ public class Server implements Runnable {
 
     
     private void newListener() {
-        (new Thread(this)).start();
+        try {
+            server = new FrameServer(serverChannel, EVENT_LOOPS, this, "server-" + serverPort);
+            peerServer = new FrameServer(Integer.parseInt(serverPort) + PEER_OFFSET, 1, new FrameHandler() {
+                @Override
+                public void onFrame(Connection connection, byte[] frame) {
+                    peerStage.execute(new RequestTask(connection, frame, true));
+                }
+            }, "peer-" + serverPort, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void newLinks() {
+        peerLinks = new PeerLink[nServers];
+        if(!MESH) {
+            return;
+        }
+        for(int i = 0; i < nServers; i++) {
+            if(PORT + i == Integer.parseInt(serverPort)) {
+                continue;
+            }
+            // The link key is sealed with the peer's key, a peer with a non-RSA key gets signed messages instead
+            if(Session.canSeal(cryptoManager.getPublicKeyFromKs("server" + (PORT + i)))) {
+                peerLinks[i] = new PeerLink(cryptoManager, Integer.parseInt(serverPort), PORT + i, PEER_OFFSET);
+            } else {
+                System.out.println("SERVER ON PORT " + serverPort + ": NO LINK TO " + (PORT + i) + ", ITS KEY IS NOT RSA");
+            }
+        }
+    }
+
+    private void newStages() {
+        // When a stage is busy and its queue is full the connection is refused
+        RejectedExecutionHandler rejection = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                System.out.println("SERVER ON PORT " + serverPort + ": REJECTED REQUEST (queue full)");
+                ((RequestTask) runnable).close();
+            }
+        };
+        // Broadcasts and replies are never dropped, the submitting thread runs them itself
+        RejectedExecutionHandler callerRuns = new ThreadPoolExecutor.CallerRunsPolicy();
+        decodeStage = new Stage("decode-" + serverPort, DECODE_THREADS, QUEUE_DEPTH, rejection);
+        verifyStage = new Stage("verify-" + serverPort, VERIFY_THREADS, QUEUE_DEPTH, rejection);
+        // Uncapped virtual threads when enabled: a handler parked in checkDelivered then costs almost nothing
+        applyStage = new Stage("worker-" + serverPort, WORKERS, QUEUE_DEPTH, rejection, true);
+        broadcastStage = new Stage("broadcast-" + serverPort, BROADCAST_THREADS, QUEUE_DEPTH, callerRuns, true);
+        respondStage = new Stage("respond-" + serverPort, RESPOND_THREADS, QUEUE_DEPTH, callerRuns);
+        persistStage = new GroupCommit("persist-" + serverPort, this::persist);
+        peerStage = new Stage("peer-" + serverPort, PEER_THREADS, QUEUE_DEPTH, rejection);
+        admission = new Admission(RATE, BURST, IN_FLIGHT);
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject stageStats() {
+        JSONObject stats = new JSONObject();
+        for(Stage stage : new Stage[] {decodeStage, verifyStage, applyStage, broadcastStage, respondStage, peerStage}) {
+            JSONObject stageObject = new JSONObject();
+            stageObject.put("queued", stage.queueDepth());
+            stageObject.put("active", stage.active());
+            stageObject.put("completed", stage.completed());
+            stats.put(stage.getName(), stageObject);
+        }
+        JSONObject persistObject = new JSONObject();
+        persistObject.put("pending", persistStage.pending());
+        persistObject.put("flushes", persistStage.flushes());
+        stats.put("persist-" + serverPort, persistObject);
+        stats.put("inflight-" + serverPort, admission.inFlight());
+        return stats;
+    }
+
+    private void persist(int files) {
+        if((files & USER_ID_MAP) != 0) {
+            saveUserIdMap();
+        }
+        if((files & USERS_BOARDS) != 0) {
+            saveUsersBoards();
+        }
+        if((files & GENERAL_BOARD) != 0) {
+            saveGeneralBoard();
+        }
+        if((files & TOTAL_ANNOUNCEMENTS) != 0) {
+            saveTotalAnnouncements();
+        }
+        if((files & SEQUENCES) != 0) {
+            saveSequences();
+        }
+    }
+
+    // Key the request must be signed with, null when it is signed by a user that is not registered
+    private PublicKey signerKey(Operation operation, Request request) {
+        switch(operation.getAuth()) {
+            case USERNAME:
+                return cryptoManager.getPublicKeyFromKs(request.getUsername());
+            case REGISTERED:
+                String username = request.getPublicKey() == null ? null : userIdMap.get(request.getPublicKey());
+                return username == null ? null : cryptoManager.getPublicKeyFromKs(username);
+            case OWN_KEY:
+                return request.getPublicKey();
+            case REPLICA:
+                return cryptoManager.getPublicKeyFromKs("server" + request.getPort());
+            case SELF:
+                return cryptoManager.getPublicKeyFromKs("server");
+            default:
+                return null;
+        }
+    }
+
+    // Error -15, the client may retry later. Reads are answered through the client's listener like their other errors
+    private void rejectRequest(Operation operation, Request request, Connection outStream) {
+        System.out.println("SERVER ON PORT " + serverPort + ": TOO MANY REQUESTS (" + operation + ")");
+        switch(operation) {
+            case READ:
+            case READGENERAL:
+                if(request.getPublicKey() != null && userIdMap.containsKey(request.getPublicKey())) {
+                    sendExceptionCode(request.getPublicKey(), request.getClientNonce(), -15, operation.name());
+                }
+                break;
+            case READCOMPLETE:
+                break;
+            default:
+                sendResponse(new Response(false, -15, request.getClientNonce(), cryptoManager.getPublicKeyFromKs("server"), request.getOperation()), outStream, false);
+                break;
+        }
+    }
+
+    // Error -16, the request names a session this replica does not know (expired, or opened before a restart).
+    // Checked before the nonce is used up, so the client can send the same request again on a new session
+    private boolean checkSession(Operation operation, Request request, Connection outStream) {
+        if(!usesSession(operation, request) || sessionOf(operation, request) != null) {
+            return true;
+        }
+        System.out.println("SERVER ON PORT " + serverPort + ": UNKNOWN SESSION (" + operation + ")");
+        if(operation.getOrigin() == Operation.Origin.PEER) {
+            // A link this replica no longer knows, the peer opens a new one when the old connection fails
+            return false;
+        }
+        if(operation.isAnsweredByListener()) {
+            sendExceptionCode(request.getPublicKey(), request.getClientNonce(), -16, operation.name());
+        } else {
+            sendResponse(new Response(false, -16, request.getClientNonce(), cryptoManager.getPublicKeyFromKs("server"), request.getOperation()), outStream, false);
+        }
+        return false;
+    }
+
+    // Client and peer requests naming a session carry a MAC instead of a signature. SESSION and LINK carry the sealed key there
+    private static boolean usesSession(Operation operation, Request request) {
+        return request.getSession() != null && operation.getOrigin() != Operation.Origin.CONTROL &&
+                operation != Operation.SESSION && operation != Operation.LINK;
+    }
+
+    // Peers name the link they opened to this replica, clients one of their sessions
+    private Session sessionOf(Operation operation, Request request) {
+        if(operation.getOrigin() == Operation.Origin.PEER) {
+            return cryptoManager.getLink(request.getPort(), request.getSession());
+        }
+        return cryptoManager.getSession(request.getSession());
+    }
+
+    // One request going through the pipeline, it resubmits itself to the next stage.
+    // Peer requests run every step on the peer lane instead
+    private class RequestTask implements Runnable {
+
+        private static final int DECODE = 0;
+        private static final int VERIFY = 1;
+        private static final int APPLY = 2;
+
+        private final Connection connection;
+        private final byte[] frame;
+        private final boolean peer;
+        private int step = DECODE;
+        private Envelope envelope;
+        private Operation operation;
+        private PublicKey verifiedKey;
+        // Set once the request is authenticated with a session MAC
+        private Session session;
+        private boolean admitted = false;
+
+        RequestTask(Connection connection, byte[] frame) {
+            this(connection, frame, false);
+        }
+
+        RequestTask(Connection connection, byte[] frame, boolean peer) {
+            this.connection = connection;
+            this.frame = frame;
+            this.peer = peer;
+        }
+
+        @Override
+        public void run() {
+            switch(step) {
+                case DECODE:
+                    try {
+                        envelope = FrameCodec.decode(frame);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        close();
+                        return;
+                    }
+                    operation = envelope.getRequest() == null ? null : Operation.of(envelope.getRequest().getOperation());
+                    if(peer && (operation == null || operation.getOrigin() != Operation.Origin.PEER)) {
+                        System.out.println("SERVER ON PORT " + serverPort + ": REFUSED CLIENT REQUEST ON PEER PORT");
+                        close();
+                        return;
+                    }
+                    if(!peer && operation != null && operation.getOrigin() == Operation.Origin.CLIENT) {
+                        if(!admission.tryAcquire(envelope.getRequest().getPublicKey())) {
+                            Connection outStream = connection;
+                            if(envelope.getRequestId() != 0) {
+                                outStream = new TaggedConnection(connection, envelope.getRequestId());
+                            }
+                            rejectRequest(operation, envelope.getRequest(), outStream);
+                            return;
+                        }
+                        admitted = true;
+                    }
+                    next(VERIFY, verifyStage);
+                    break;
+                case VERIFY:
+                    preverify();
+                    next(APPLY, applyStage);
+                    break;
+                default:
+                    try {
+                        handle(connection, this);
+                    } finally {
+                        release();
+                    }
+                    break;
+            }
+        }
+
+        private void release() {
+            if(admitted) {
+                admitted = false;
+                admission.release();
+            }
+        }
+
+        private void next(int nextStep, Stage stage) {
+            step = nextStep;
+            if(peer) {
+                run();
+            } else {
+                stage.execute(this);
+            }
+        }
+
+        private void preverify() {
+            try {
+                if(operation == null) {
+                    return;
+                }
+                PublicKey key = signerKey(operation, envelope.getRequest());
+                if(key != null && verify(key)) {
+                    verifiedKey = key;
+                }
+            } catch (Exception e) {
+                // Malformed request: handle verifies inline and reports it as it always did
+            }
+        }
+
+        // Signature check used by handle, already answered when the verify stage could do it
+        boolean authenticate() {
+            if(verifiedKey != null) {
+                return true;
+            }
+            PublicKey key = signerKey(operation, envelope.getRequest());
+            return key != null && verify(key);
+        }
+
+        // A session request is MAC'd with a session the same key opened, anything else is signed with it
+        private boolean verify(PublicKey key) {
+            Request request = envelope.getRequest();
+            if(!usesSession(operation, request)) {
+                return cryptoManager.verifyRequest(request, envelope.getSignature(), key);
+            }
+            Session candidate = sessionOf(operation, request);
+            if(candidate != null && key.equals(candidate.getClientKey()) && cryptoManager.verifyRequest(request, envelope.getSignature(), candidate)) {
+                session = candidate;
+                return true;
+            }
+            return false;
+        }
+
+        void close() {
+            release();
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
     
     
@@ -925,7 +1324,7 @@ public class Server implements Runnable {
 //
 ////////////////////////////////////////////////////////////////////////////////
 
-    public void deleteUsers(ObjectOutputStream outputStream) throws IOException {
+    public void deleteUsers(Connection outputStream) throws IOException {
 
         System.out.println("SERVER ON PORT " + this.serverPort + ": DELETE OPERATION");
 
@@ -941,7 +1340,7 @@ public class Server implements Runnable {
         setTotalAnnouncements(0);
         saveTotalAnnouncements();
         
-        outputStream.writeObject(new Envelope(new Request("DEL_ACK")));
+        outputStream.send(new Envelope(new Request("DEL_ACK")));
 
     }
 
@@ -1174,13 +1573,49 @@ public class Server implements Runnable {
         }
     }
 
+/////////////////////////////////////////////
+//
+// Methods to save/get client sequence numbers from File
+//
+/////////////////////////////////////////////
+
+    private void saveSequences() {
+        try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(sequencesPathCopy))) {
+            out.writeObject(cryptoManager.getSequences());
+
+            File original = new File(sequencesPath);
+            File copy = new File(sequencesPathCopy);
+
+            if(original.delete() || !original.exists()){
+                copy.renameTo(original);
+            }
+
+        } catch (IOException i) {
+            i.printStackTrace();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void getSequences() {
+        try(ObjectInputStream in = new ObjectInputStream(new FileInputStream(sequencesPath))) {
+            cryptoManager.setSequences((ConcurrentHashMap<PublicKey, ReplayWindow>) in.readObject());
+        }
+        catch(FileNotFoundException e){
+            // No client has numbered a request yet
+        } catch (
+            IOException |
+            ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
 //////////////////////////////////////////
 //
 //          Check exception
 //
 //////////////////////////////////////////
     @SuppressWarnings("all")
-    public boolean checkExceptions(Request request, ObjectOutputStream outStream, int[] codes, String operationType) {
+    public boolean checkExceptions(Request request, Connection outStream, int[] codes, String operationType) {
         for (int i = 0; i < codes.length; i++) {
             switch(codes[i]) {
                 // ## UserNotRegistered ## -> check if user is registered
@@ -1232,6 +1667,14 @@ public class Server implements Runnable {
                         return false;
                     }
                     break;
+                // ## MalformedProposal ## -> [ECHO/READY] check the message names the client request(s) it vouches for.
+                // Dropped without a reply like other refused peer messages, peer links are never read after the handshake
+                case -17:
+                    if(!PeerLink.namesProposal(request)) {
+                        System.out.println("SERVER ON PORT " + this.serverPort + ": MALFORMED " + request.getOperation() + " FROM " + request.getPort());
+                        return false;
+                    }
+                    break;
                 // ## TooMuchAnnouncements ## -> Check if user is trying to read more announcements that Board number of announcements
                 case -10:
                     if ((request.getOperation().equals("READ") && request.getNumber() > usersBoards.get(request.getPublicKeyToReadFrom()).getSecond().size()) || (request.getOperation().equals("READGENERAL") && request.getNumber() > generalBoard.getSecond().size())) {
@@ -1249,8 +1692,9 @@ public class Server implements Runnable {
     private void sendExceptionCode(PublicKey clientKey, byte[] clientNonce, int code, String operationType) {
         int clientPort = getClientPort(userIdMap.get(clientKey));
         int ts = usersBoards.get(clientKey).getFirst();
-        try(ObjectOutputStream newOutputStream = new ObjectOutputStream(new Socket("localhost", clientPort).getOutputStream())) {
-            sendResponse(new Response(false, code, clientNonce, cryptoManager.getPublicKeyFromKs("server"), ts, operationType), newOutputStream, integrityFlag);
+        // Sent inline: the connection is closed right after
+        try(SocketConnection newOutputStream = new SocketConnection("localhost", clientPort)) {
+            respond(new Response(false, code, clientNonce, cryptoManager.getPublicKeyFromKs("server"), ts, operationType), newOutputStream, integrityFlag, replayFlag && !handshake);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1290,10 +1734,8 @@ public class Server implements Runnable {
     }
 
     private Envelope askForClientNonce(PublicKey serverKey, int port) throws NonceTimeoutException {
-        try(Socket socket = new Socket("localhost", port);
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream())) {
-            return sendReceive(new Request("NONCE", serverKey), outputStream, inputStream);
+        try(SocketConnection connection = new SocketConnection("localhost", port)) {
+            return sendReceive(new Request("NONCE", serverKey), connection);
         } catch (IOException e) {
             throw new NonceTimeoutException("The operation was not possible, please try again!"); //IOException apanha tudo
         }
@@ -1309,10 +1751,8 @@ public class Server implements Runnable {
     }
 
     private Envelope askForServerNonce(PublicKey serverKey, int port) throws NonceTimeoutException {
-        try(Socket socket = new Socket("localhost", port);
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream())) {
-            return sendReceive(new Request("SERVERNONCE", serverKey), outputStream, inputStream);
+        try(SocketConnection connection = new SocketConnection("localhost", port + PEER_OFFSET)) {
+            return sendReceive(new Request("SERVERNONCE", serverKey), connection);
         } catch (IOException e) {
             throw new NonceTimeoutException("The operation was not possible, please try again!"); //IOException apanha tudo
         }
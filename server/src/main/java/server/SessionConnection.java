@@ -0,0 +1,38 @@
+package server;
+
+import library.Connection;
+import library.Envelope;
+import library.Session;
+
+import java.io.IOException;
+
+// The link to a client whose request was authenticated with a session, replies on it are MAC'd with that session
+class SessionConnection implements Connection {
+
+    private final Connection connection;
+    private final Session session;
+
+    SessionConnection(Connection connection, Session session) {
+        this.connection = connection;
+        this.session = session;
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    @Override
+    public void send(Envelope envelope) throws IOException {
+        connection.send(envelope);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connection.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import library.Tasks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// One step of the request pipeline, with its own bounded queue and thread budget
+public class Stage {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    // A stage whose tasks only compute (decode, verify, respond) runs on a fixed pool of platform threads
+    public Stage(String name, int threads, int queueDepth, RejectedExecutionHandler rejection) {
+        this(name, threads, queueDepth, rejection, false);
+    }
+
+    // A blocking stage waits on other replicas (apply, broadcast). With virtual threads each of its tasks gets a
+    // thread of its own and threads is no limit, Admission already bounds the client requests in flight
+    public Stage(String name, int threads, int queueDepth, RejectedExecutionHandler rejection, boolean blocking) {
+        this.name = name;
+        if(blocking && Tasks.isVirtual()) {
+            this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), Tasks.factory(name), rejection);
+        } else {
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueDepth), blocking ? Tasks.factory(name) : Tasks.platformFactory(name), rejection);
+        }
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    public long completed() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return name + " queued=" + queueDepth() + " active=" + active() + " completed=" + completed();
+    }
+}
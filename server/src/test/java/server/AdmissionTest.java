@@ -0,0 +1,95 @@
+package server;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Tokens per public key and slots per replica. A rate of 0 never refills, so every token taken shows
+public class AdmissionTest {
+
+    private static PublicKey user1;
+    private static PublicKey user2;
+
+    @BeforeClass
+    public static void keys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        user1 = generator.generateKeyPair().getPublic();
+        user2 = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void Should_Refuse_When_BurstIsUsedUp() {
+        Admission admission = new Admission(0, 2, 10);
+        assertTrue(admission.tryAcquire(user1));
+        assertTrue(admission.tryAcquire(user1));
+        assertFalse(admission.tryAcquire(user1));
+        // Buckets are per key
+        assertTrue(admission.tryAcquire(user2));
+    }
+
+    @Test
+    public void Should_KeepTokens_When_ReleasingSlots() {
+        Admission admission = new Admission(0, 1, 10);
+        assertTrue(admission.tryAcquire(user1));
+        admission.release();
+        assertFalse(admission.tryAcquire(user1));
+    }
+
+    @Test
+    public void Should_Refuse_When_TooManyInFlight() {
+        Admission admission = new Admission(0, 10, 2);
+        assertTrue(admission.tryAcquire(user1));
+        assertTrue(admission.tryAcquire(user2));
+        assertEquals(2, admission.inFlight());
+        assertFalse(admission.tryAcquire(user1));
+        admission.release();
+        assertEquals(1, admission.inFlight());
+        assertTrue(admission.tryAcquire(user1));
+    }
+
+    @Test
+    public void Should_NotSpendToken_When_RefusedForLoad() {
+        Admission admission = new Admission(0, 1, 1);
+        assertTrue(admission.tryAcquire(user1));
+        // user2's only token must survive being turned away while the replica is full
+        assertFalse(admission.tryAcquire(user2));
+        assertFalse(admission.tryAcquire(user2));
+        admission.release();
+        assertTrue(admission.tryAcquire(user2));
+    }
+
+    @Test
+    public void Should_FreeSlot_When_RefusedForTokens() {
+        Admission admission = new Admission(0, 1, 1);
+        assertTrue(admission.tryAcquire(user1));
+        admission.release();
+        assertFalse(admission.tryAcquire(user1));
+        assertEquals(0, admission.inFlight());
+        assertTrue(admission.tryAcquire(user2));
+    }
+
+    @Test
+    public void Should_OnlyCountSlots_When_KeyIsUnknown() {
+        Admission admission = new Admission(0, 1, 3);
+        assertTrue(admission.tryAcquire(null));
+        assertTrue(admission.tryAcquire(null));
+        assertTrue(admission.tryAcquire(null));
+        assertFalse(admission.tryAcquire(null));
+        assertEquals(3, admission.inFlight());
+    }
+
+    @Test
+    public void Should_Refill_When_TimePasses() throws Exception {
+        Admission admission = new Admission(1000, 1, 10);
+        assertTrue(admission.tryAcquire(user1));
+        Thread.sleep(20);
+        assertTrue(admission.tryAcquire(user1));
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import library.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.ObjectOutputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+// Cost of signResponse with the keystore read on every call (as it used to be) and with the cached keys.
+// Run from the server directory: java -cp target/classes:target/test-classes:../library/target/classes:<json-simple jar> server.KeyCacheBenchmark
+public class KeyCacheBenchmark {
+
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        CryptoManager cryptoManager = new CryptoManager(9000);
+        Response response = new Response(true, cryptoManager.generateRandomNonce(), cryptoManager.getPublicKeyFromKs("server"));
+
+        for(int i = 0; i < WARMUP; i++) {
+            signReadingKeystore(response);
+            cryptoManager.signResponse(response);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            signReadingKeystore(response);
+        }
+        long before = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            cryptoManager.signResponse(response);
+        }
+        long after = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.printf("signResponse, keystore read per call: %8d ns/op%n", before);
+        System.out.printf("signResponse, cached keys:            %8d ns/op%n", after);
+    }
+
+    // The old path: load the JKS, get the private key, then sign
+    private static byte[] signReadingKeystore(Response response) throws Exception {
+        char[] passphrase = "changeit".toCharArray();
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try(FileInputStream in = new FileInputStream("keystores/port_9000/keystore")) {
+            ks.load(in, passphrase);
+        }
+        PrivateKey key = (PrivateKey) ks.getKey("server", passphrase);
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(key);
+        signature.update(serialize(response));
+        return signature.sign();
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(object);
+        }
+        return bos.toByteArray();
+    }
+}
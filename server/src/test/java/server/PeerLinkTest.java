@@ -0,0 +1,171 @@
+package server;
+
+import library.Envelope;
+import library.FrameCodec;
+import library.Pair;
+import library.Request;
+import library.Signatures;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// ECHO/READY bundles as PeerLink builds them and as Server checks them, no replica needs to run
+public class PeerLinkTest {
+
+    private static PublicKey replica;
+    private static PublicKey client1;
+    private static PublicKey client2;
+
+    @BeforeClass
+    public static void keys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        replica = generator.generateKeyPair().getPublic();
+        client1 = generator.generateKeyPair().getPublic();
+        client2 = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void Should_ListEveryProposal_When_Bundled() throws Exception {
+        Request bundle = PeerLink.bundle(Arrays.asList(echo(client1, digest(1)), echo(client2, digest(2))), 9000);
+
+        assertEquals("ECHO", bundle.getOperation());
+        assertEquals(9000, bundle.getPort());
+        assertTrue(PeerLink.namesProposal(bundle));
+        List<Pair<PublicKey, byte[]>> proposals = proposals(bundle);
+        assertEquals(2, proposals.size());
+        assertEquals(client1, proposals.get(0).getFirst());
+        assertArrayEquals(digest(1), proposals.get(0).getSecond());
+        assertEquals(client2, proposals.get(1).getFirst());
+        assertArrayEquals(digest(2), proposals.get(1).getSecond());
+    }
+
+    @Test
+    public void Should_KeepProposals_When_BundleCrossesTheWire() throws Exception {
+        Request bundle = PeerLink.bundle(Arrays.asList(echo(client1, digest(1)), echo(client2, digest(2))), 9000);
+
+        for(byte format : new byte[] {FrameCodec.SIGNED_FORMAT, FrameCodec.BINARY_FORMAT, FrameCodec.JAVA_FORMAT}) {
+            Request decoded = FrameCodec.decode(FrameCodec.encode(new Envelope(bundle), format)).getRequest();
+            assertTrue(PeerLink.namesProposal(decoded));
+            List<Pair<PublicKey, byte[]>> proposals = proposals(decoded);
+            assertEquals(2, proposals.size());
+            assertEquals(client2, proposals.get(1).getFirst());
+            assertArrayEquals(digest(2), proposals.get(1).getSecond());
+        }
+    }
+
+    @Test
+    public void Should_NameProposal_When_SingleDigest() {
+        assertTrue(PeerLink.namesProposal(echo(client1, digest(1))));
+    }
+
+    @Test
+    public void Should_NameNoProposal_When_NoDigestEnvelopeOrBundle() {
+        assertFalse(PeerLink.namesProposal(new Request("ECHO", (PublicKey) null, null, replica, null, 9000)));
+    }
+
+    @Test
+    public void Should_NameNoProposal_When_DigestHasNoClient() {
+        assertFalse(PeerLink.namesProposal(echo(null, digest(1))));
+    }
+
+    @Test
+    public void Should_NameNoProposal_When_DigestIsShort() {
+        assertFalse(PeerLink.namesProposal(echo(client1, new byte[] {1, 2, 3})));
+    }
+
+    @Test
+    public void Should_NameNoProposal_When_BundleIsNotAList() {
+        JSONObject object = new JSONObject();
+        object.put(PeerLink.PROPOSALS, "not a list");
+        Request request = new Request("READY", (PublicKey) null, null, replica, null, 9000);
+        request.setJsonObject(object);
+        assertFalse(PeerLink.namesProposal(request));
+    }
+
+    @Test
+    public void Should_RejectEntry_When_ArityIsWrong() {
+        assertFalse(PeerLink.isProposal(entry(client1)));
+        assertFalse(PeerLink.isProposal(entry(client1, digest(1), digest(2))));
+        assertFalse(PeerLink.isProposal(entry()));
+    }
+
+    @Test
+    public void Should_RejectEntry_When_DigestIsText() {
+        assertFalse(PeerLink.isProposal(entry(client1, "not base64!")));
+        assertFalse(PeerLink.isProposal(entry(client1, Base64.getEncoder().encodeToString(digest(1)))));
+    }
+
+    @Test
+    public void Should_RejectEntry_When_DigestHasWrongLength() {
+        assertFalse(PeerLink.isProposal(entry(client1, new byte[Signatures.DIGEST_BYTES - 1])));
+        assertFalse(PeerLink.isProposal(entry(client1, new byte[0])));
+    }
+
+    @Test
+    public void Should_RejectEntry_When_ClientIsNotAKey() {
+        assertFalse(PeerLink.isProposal(entry("client1", digest(1))));
+        assertFalse(PeerLink.isProposal(entry(null, digest(1))));
+        assertFalse(PeerLink.isProposal("not an entry"));
+    }
+
+    @Test
+    public void Should_KeepValidEntries_When_BundleHasMalformedOnes() {
+        JSONArray entries = new JSONArray();
+        entries.add(entry(client1, digest(1)));
+        entries.add(entry(client2));
+        entries.add(entry(client2, "AAAA"));
+        entries.add(entry(client2, digest(2)));
+        JSONObject object = new JSONObject();
+        object.put(PeerLink.PROPOSALS, entries);
+        Request request = new Request("READY", (PublicKey) null, null, replica, null, 9000);
+        request.setJsonObject(object);
+
+        assertTrue(PeerLink.namesProposal(request));
+        List<Pair<PublicKey, byte[]>> proposals = proposals(request);
+        assertEquals(2, proposals.size());
+        assertEquals(client1, proposals.get(0).getFirst());
+        assertEquals(client2, proposals.get(1).getFirst());
+    }
+
+    private static Request echo(PublicKey client, byte[] digest) {
+        return new Request("ECHO", client, digest, replica, null, 9000);
+    }
+
+    private static byte[] digest(int seed) {
+        byte[] digest = new byte[Signatures.DIGEST_BYTES];
+        Arrays.fill(digest, (byte) seed);
+        return digest;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONArray entry(Object... values) {
+        JSONArray entry = new JSONArray();
+        entry.addAll(Arrays.asList(values));
+        return entry;
+    }
+
+    // What Server.proposalsOf counts
+    private static List<Pair<PublicKey, byte[]>> proposals(Request bundle) {
+        List<Pair<PublicKey, byte[]>> proposals = new ArrayList<>();
+        for(Object entry : (JSONArray) bundle.getJsonObject().get(PeerLink.PROPOSALS)) {
+            if(PeerLink.isProposal(entry)) {
+                proposals.add(PeerLink.proposal(entry));
+            }
+        }
+        return proposals;
+    }
+}